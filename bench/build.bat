@@ -0,0 +1,54 @@
+@ECHO OFF
+
+SET ROOT=%~dp0\..
+
+REM make sure we have javac on PATH and JAVALIB set, as well as tc-apis-NG.jar ready:
+CALL "%ROOT%\build.bat"
+IF ERRORLEVEL 1 (
+  EXIT /B 1
+)
+
+SETLOCAL ENABLEDELAYEDEXPANSION
+IF ERRORLEVEL 1 (
+  ECHO no delayed expansion!
+  GOTO FAULT
+)
+
+SET MY_PATH=%~dp0
+REM strip trailing backslash:
+SET MY_PATH=%MY_PATH:~0,-1%
+
+SET VENDOR=%MY_PATH%\vendor\jmh
+IF NOT EXIST "%VENDOR%\jmh-core-1.37.jar" (
+  ECHO missing JMH, please run "%VENDOR%\wget-it.bat" there
+  EXIT /B 1
+)
+SET MY_CP="%ROOT%\dist\tc-apis-NG.jar";"%JAVALIB%\swt-win32-3.1.2.jar";"%JAVALIB%\commons-logging-api-1.0.4.jar";"%VENDOR%\*"
+SET SRC=%MY_PATH%\src
+SET BIN=%MY_PATH%\bin
+SET SCRATCH=%MY_PATH%\scratch
+
+MKDIR "%BIN%" 2>NUL
+DEL /S /Q "%BIN%" >NUL 2>&1
+RMDIR /S /Q "%SCRATCH%" >NUL 2>&1
+MKDIR "%SCRATCH%"
+
+ECHO compiling benchmarks to "%BIN%\"...
+
+DIR /S /B "%SRC%\*.java" >"%SCRATCH%\classes"
+REM Hashes.WDX explicitly, for LoadSimulator to load it by name:
+DIR /S /B "%ROOT%\example-plugins\Hashes.WDX\src\*.java" >>"%SCRATCH%\classes"
+javac -Xlint -cp %MY_CP% -sourcepath "%SRC%;%ROOT%\example-plugins\Hashes.WDX\src" -processor org.openjdk.jmh.generators.BenchmarkProcessor -d "%BIN%" @"%SCRATCH%\classes"
+IF ERRORLEVEL 1 (
+  ECHO benchmarks failed!
+  GOTO FAULT
+)
+
+
+:DONE
+  RMDIR /S /Q "%SCRATCH%" >NUL 2>&1
+  ENDLOCAL & EXIT /B 0
+
+:FAULT
+  RMDIR /S /Q "%SCRATCH%" >NUL 2>&1
+  ENDLOCAL & EXIT /B 1
@@ -0,0 +1,21 @@
+#!/bin/sh
+# Builds tc-apis-NG and the benchmarks into bench/bin on a plain JDK (no TC needed).
+set -e
+MY_PATH=$(cd "$(dirname "$0")" && pwd)
+ROOT=$(dirname "$MY_PATH")
+VENDOR=$MY_PATH/vendor/jmh
+BIN=$MY_PATH/bin
+SCRATCH=$MY_PATH/scratch
+
+sh "$VENDOR/wget-it.sh"
+
+rm -rf "$BIN" "$SCRATCH"
+mkdir -p "$BIN" "$SCRATCH"
+trap 'rm -rf "$SCRATCH"' EXIT
+
+echo "compiling benchmarks to \"$BIN/\"..."
+find "$ROOT/src/java" "$ROOT/example-plugins/Hashes.WDX/src" "$MY_PATH/src" -name '*.java' >"$SCRATCH/classes"
+javac -Xlint -nowarn -encoding UTF-8 \
+    -cp "$ROOT/vendor/tc_java/tc-apis-1.7.jar:$VENDOR/*" \
+    -processor org.openjdk.jmh.generators.BenchmarkProcessor \
+    -d "$BIN" @"$SCRATCH/classes"
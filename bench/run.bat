@@ -0,0 +1,43 @@
+@ECHO OFF
+
+REM usage: bench\run.bat <main class> [args...]
+REM   eg   bench\run.bat plugins.wdx.WorkItemStoreBench 32 5
+REM        bench\run.bat org.openjdk.jmh.Main HashBench -p algorithm=SHA256
+
+SETLOCAL ENABLEDELAYEDEXPANSION
+IF ERRORLEVEL 1 (
+  ECHO no delayed expansion!
+  GOTO FAULT
+)
+SET MY_PATH=%~dp0
+REM strip trailing backslash:
+SET MY_PATH=%MY_PATH:~0,-1%
+SET ROOT=%MY_PATH%\..
+
+SET MAIN_CLASS=%1
+IF "%MAIN_CLASS%"=="" (
+  ECHO missing arg: main class
+  GOTO FAULT
+)
+
+REM will call root build.bat s.t. java, JAVALIB and tc-apis-NG.jar are available
+CALL "%MY_PATH%\build.bat"
+IF ERRORLEVEL 1 (
+  GOTO FAULT
+)
+
+SET MY_CP="%MY_PATH%\bin";"%ROOT%\dist\tc-apis-NG.jar";"%JAVALIB%\swt-win32-3.1.2.jar";"%JAVALIB%\commons-logging-api-1.0.4.jar";"%MY_PATH%\vendor\jmh\*"
+
+ECHO.
+ECHO running %1 %2 %3 %4 %5 %6 %7 %8 %9
+
+java -cp %MY_CP% %1 %2 %3 %4 %5 %6 %7 %8 %9
+IF ERRORLEVEL 1 (
+  GOTO FAULT
+)
+
+:DONE
+  ENDLOCAL & EXIT /B 0
+
+:FAULT
+  ENDLOCAL & EXIT /B 1
@@ -0,0 +1,15 @@
+#!/bin/sh
+# usage: bench/run.sh [<main class> [args...]]
+#   eg   bench/run.sh                                   (all JMH benchmarks)
+#        bench/run.sh org.openjdk.jmh.Main HashBench -p algorithm=SHA256
+#        bench/run.sh plugins.wdx.WorkItemStoreBench 32 5
+MY_PATH=$(cd "$(dirname "$0")" && pwd)
+ROOT=$(dirname "$MY_PATH")
+
+sh "$MY_PATH/build.sh" || exit 1
+
+MAIN_CLASS=${1:-org.openjdk.jmh.Main}
+[ $# -gt 0 ] && shift
+echo
+echo "running $MAIN_CLASS $*"
+exec java -cp "$MY_PATH/bin:$ROOT/vendor/tc_java/tc-apis-1.7.jar:$MY_PATH/vendor/jmh/*" $JAVA_OPTS "$MAIN_CLASS" "$@"
@@ -0,0 +1,52 @@
+
+import java.nio.ByteBuffer;
+
+import plugins.wdx.bench.HashAdapter;
+
+
+/** See {@link HashAdapter}.
+  *
+  * @author Matthias Kling (meisl)
+  */
+public class HashBenchAdapter extends HashAdapter {
+
+    public String[] algorithms() {
+        Hash[] hashes = Hash.values();
+        String[] result = new String[hashes.length];
+        for (int i = 0; i < hashes.length; i++) {
+            result[i] = hashes[i].name();
+        }
+        return result;
+    }
+
+    public Processor newProcessor(String algorithm) {
+        return wrap(Hash.valueOf(algorithm).newProcessor(), false);
+    }
+
+    public Processor acquireProcessor(String algorithm) {
+        return wrap(Hash.valueOf(algorithm).acquire(), true);
+    }
+
+    private static Processor wrap(final Hash.Processor p, final boolean isPooled) {
+        return new Processor() {
+            public void update(ByteBuffer buf) {
+                p.update(buf);
+            }
+
+            public byte[] digest() {
+                return p.getValueAsBytes();
+            }
+
+            public String hex() {
+                return p.getValue();
+            }
+
+            public void release() {
+                if (isPooled) {
+                    p.release();
+                }
+            }
+        };
+    }
+
+}
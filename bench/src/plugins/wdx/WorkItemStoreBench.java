@@ -0,0 +1,119 @@
+package plugins.wdx;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+
+/** Contention benchmark for {@link WorkItem.Store}: {@code threads} threads
+  * each create and clean up WorkItems for a file of their own (as TC's worker
+  * threads do via contentGetValue), while one more thread looks up the items
+  * of random files (as contentStopGetValue does).
+  * <p>
+  * The same load is run against the store with all calls serialized on one
+  * monitor, which is how the store used to work, for comparison.
+  * <p>
+  * Usage: {@code WorkItemStoreBench [threads [seconds [rounds]]]}, defaults 16, 2, 3.
+  *
+  * @author Matthias Kling (meisl)
+  */
+public class WorkItemStoreBench {
+
+    public static void main(String... args) throws Exception {
+        int threads = (args.length > 0) ? Integer.parseInt(args[0]) : 16;
+        int seconds = (args.length > 1) ? Integer.parseInt(args[1]) : 2;
+        int rounds  = (args.length > 2) ? Integer.parseInt(args[2]) : 3;
+
+        Field<String> field = new Field.STRING("bench") {
+            public String getValue(String fileName) {
+                return fileName;
+            }
+        };
+        System.out.println(threads + " threads on distinct files + 1 stopping, " + seconds + " s per run, "
+            + Runtime.getRuntime().availableProcessors() + " CPUs");
+        for (int r = 0; r < rounds; r++) {
+            report("one monitor", run(new WorkItem.Store(), new Object(), field, threads, seconds), seconds);
+            report("per file   ", run(new WorkItem.Store(), null, field, threads, seconds), seconds);
+        }
+    }
+
+    private static void report(String name, long[] counts, int seconds) {
+        System.out.println(String.format("%s  %,12d items/s  %,10d lookups/s", name, counts[0] / seconds, counts[1] / seconds));
+    }
+
+    /* Returns {items created and cleaned up, lookups}; if lock is non-null,
+     * every call to the store is synchronized on it.
+     */
+    private static long[] run(final WorkItem.Store store, final Object lock, final Field<?> field,
+                              final int threads, int seconds) throws InterruptedException
+    {
+        final AtomicBoolean isRunning = new AtomicBoolean(true);
+        final AtomicLong items = new AtomicLong();
+        final AtomicLong lookups = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            final String fileName = "C:\\bench\\file" + i;
+            workers.add(new Thread() {
+                public void run() {
+                    await(start);
+                    long n = 0;
+                    while (isRunning.get()) {
+                        WorkItem it;
+                        if (lock == null) {
+                            it = store.newItem(fileName, field, 0);
+                            it.cleanup();
+                        } else {
+                            synchronized (lock) {
+                                it = store.newItem(fileName, field, 0);
+                            }
+                            synchronized (lock) {
+                                it.cleanup();
+                            }
+                        }
+                        n++;
+                    }
+                    items.addAndGet(n);
+                }
+            });
+        }
+        workers.add(new Thread() {
+            public void run() {
+                await(start);
+                Random random = new Random(42);
+                long n = 0;
+                while (isRunning.get()) {
+                    String fileName = "C:\\bench\\file" + random.nextInt(threads);
+                    if (lock == null) {
+                        store.itemCount(fileName);
+                    } else {
+                        synchronized (lock) {
+                            store.itemCount(fileName);
+                        }
+                    }
+                    n++;
+                }
+                lookups.addAndGet(n);
+            }
+        });
+        for (Thread t: workers) {
+            t.start();
+        }
+        start.countDown();
+        Thread.sleep(seconds * 1000L);
+        isRunning.set(false);
+        for (Thread t: workers) {
+            t.join();
+        }
+        return new long[] {items.get(), lookups.get()};
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}
@@ -0,0 +1,141 @@
+package plugins.wdx.bench;
+
+import java.io.*;
+
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import plugins.wdx.*;
+
+
+/** Throughput of {@link ContentPlugin#contents}: reading a generated temp file
+  * of {@code fileSize} bytes end to end (touching one byte per 4K page, so
+  * mapped pages are actually brought in), per read buffer size and strategy.
+  * <p>
+  * {@code files=warm} reads the same file over and over, ie from the page cache.
+  * {@code files=fresh} writes a new file before each iteration; if system
+  * property {@code bench.dropCaches} is true and {@code /proc/sys/vm/drop_caches}
+  * is writable (root on Linux), the page cache is dropped after writing, so
+  * the first read of each iteration comes from the disk.
+  *
+  * @author Matthias Kling (meisl)
+  */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ContentsBench {
+
+    @Param({"16384", "131072", "1048576"})
+    public int bufferSize;
+
+    @Param({"65536", "4194304", "67108864"})
+    public long fileSize;
+
+    /** {@code auto}: as chosen by {@link ContentPlugin#readStrategyFor}. */
+    @Param({"auto", "READ_AHEAD", "MAPPED"})
+    public String strategy;
+
+    @Param({"warm", "fresh"})
+    public String files;
+
+    private static final boolean DROP_CACHES = Boolean.getBoolean("bench.dropCaches");
+
+    private Path dir;
+    private Path file;
+    private ContentPlugin plugin;
+    private int generation = 0;
+
+    @Setup(Level.Trial)
+    public void setupTrial() throws IOException {
+        dir = Files.createTempDirectory("wdx-bench");
+        plugin = new ContentPlugin() {
+            protected void initFields() {
+            }
+        };
+        plugin.setReadAhead(ContentPlugin.DEFAULT_READ_AHEAD_DEPTH, bufferSize);
+        switch (strategy) {
+            case "auto":
+                break;
+            case "READ_AHEAD":
+                plugin.setReadThresholds(0, Long.MAX_VALUE, ContentPlugin.DEFAULT_MAP_WINDOW_SIZE);
+                break;
+            case "MAPPED":
+                plugin.setReadThresholds(0, 0, ContentPlugin.DEFAULT_MAP_WINDOW_SIZE);
+                break;
+            default:
+                throw new IllegalArgumentException("strategy: " + strategy);
+        }
+        if ("warm".equals(files)) {
+            writeFile();
+            read();
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void setupIteration() throws IOException {
+        if ("fresh".equals(files)) {
+            if (file != null) {
+                Files.delete(file);
+            }
+            writeFile();
+            if (DROP_CACHES) {
+                dropCaches();
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        plugin.contentPluginUnloading();
+        if (file != null) {
+            Files.deleteIfExists(file);
+        }
+        Files.deleteIfExists(dir);
+    }
+
+    @Benchmark
+    public long read() throws IOException {
+        long result = 0;
+        for (ByteBuffer buf: plugin.contents(file.toString())) {
+            for (int i = buf.position(); i < buf.limit(); i += 4096) {
+                result += buf.get(i);
+            }
+            result += buf.remaining();
+        }
+        return result;
+    }
+
+    private void writeFile() throws IOException {
+        file = dir.resolve("contents-" + generation++ + ".bin");
+        Random random = new Random(generation);
+        byte[] chunk = new byte[1 << 20];
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            for (long left = fileSize; left > 0; left -= chunk.length) {
+                random.nextBytes(chunk);
+                ByteBuffer buf = ByteBuffer.wrap(chunk, 0, (int)Math.min(chunk.length, left));
+                while (buf.hasRemaining()) {
+                    out.write(buf);
+                }
+            }
+            out.force(true);
+        }
+    }
+
+    private static void dropCaches() {
+        try (Writer out = new FileWriter("/proc/sys/vm/drop_caches")) {
+            out.write("1\n");
+        } catch (IOException e) {
+            System.err.println("cannot drop page cache: " + e);
+        }
+    }
+
+}
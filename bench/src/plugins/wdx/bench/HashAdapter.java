@@ -0,0 +1,39 @@
+package plugins.wdx.bench;
+
+import java.nio.ByteBuffer;
+
+
+/** Gives the benchmarks access to the Hashes.WDX plugin's {@code Hash} enum,
+  * which lives in the default package and thus cannot be imported from
+  * here (nor from the code JMH generates). Implemented by {@code HashBenchAdapter}
+  * in the default package, see {@link #load}.
+  *
+  * @author Matthias Kling (meisl)
+  */
+public abstract class HashAdapter {
+
+    public interface Processor {
+        void update(ByteBuffer buf);
+        byte[] digest();
+        String hex();
+        /** Done with it; returns a pooled Processor to the pool. */
+        void release();
+    }
+
+    public static HashAdapter load() {
+        try {
+            return (HashAdapter)Class.forName("HashBenchAdapter").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** The names of all {@code Hash} constants. */
+    public abstract String[] algorithms();
+
+    public abstract Processor newProcessor(String algorithm);
+
+    /** A Processor from the current thread's pool, see {@code Hash.acquire}. */
+    public abstract Processor acquireProcessor(String algorithm);
+
+}
@@ -0,0 +1,59 @@
+package plugins.wdx.bench;
+
+import java.nio.ByteBuffer;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+
+/** Throughput of each {@code Hash}'s {@code Processor.update} on one buffer
+  * of {@code size} bytes, on the heap or direct; a fresh Processor per
+  * operation, as Hashes.WDX does per file. Multiply ops/s by {@code size}
+  * for bytes/s.
+  *
+  * @author Matthias Kling (meisl)
+  */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashBench {
+
+    @Param({"CRC32", "CRC32C", "XXH64", "Adler32", "MD2", "MD5", "SHA1", "SHA256", "SHA384", "SHA512",
+            "SHA256_TREE", "SHA512_TREE"})
+    public String algorithm;
+
+    @Param({"heap", "direct"})
+    public String buffer;
+
+    @Param({"4096", "131072"})
+    public int size;
+
+    private HashAdapter hashes;
+    private ByteBuffer buf;
+
+    @Setup
+    public void setup() {
+        hashes = HashAdapter.load();
+        if (!Arrays.asList(hashes.algorithms()).contains(algorithm)) {
+            throw new IllegalArgumentException("no such Hash: " + algorithm);
+        }
+        buf = "direct".equals(buffer) ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        byte[] bytes = new byte[size];
+        new Random(42).nextBytes(bytes);
+        buf.put(bytes);
+        buf.flip();
+    }
+
+    @Benchmark
+    public byte[] update() {
+        HashAdapter.Processor p = hashes.newProcessor(algorithm);
+        p.update(buf.duplicate());
+        return p.digest();
+    }
+
+}
@@ -0,0 +1,337 @@
+package plugins.wdx.bench;
+
+import java.io.*;
+
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import plugins.wdx.*;
+import static plugins.wdx.FieldValue.*;
+import static plugins.wdx.WDXPluginInterface.*;
+
+
+/** Drives a {@link ContentPlugin} the way Total Commander does, headless:
+  * fields are enumerated via {@code contentGetSupportedField}, then a simulated
+  * user goes through a directory tree page by page. For every file on the page
+  * TC's UI thread asks for each column with {@code CONTENT_DELAYIFSLOW}; the
+  * delayed ones are asked for again, without the flag, on {@code threads}
+  * worker threads. When the user scrolls on (or leaves the folder), each
+  * of the page's values still outstanding is abandoned with probability
+  * {@code stopRate}: dropped if not started yet, or stopped via
+  * {@code contentStopGetValue} if running.
+  * <p>
+  * Reports throughput, how many of the delayed values were completed, and
+  * the work wasted on abandoned values.
+  * <p>
+  * Usage: {@code LoadSimulator --plugin=CLASS [options]}, options:
+  * <pre>
+  *   --root=DIR        walk this tree (default: generate one in a temp dir, deleted at the end)
+  *   --dirs=N          folders to generate (default 4)
+  *   --files=N         files per generated folder (default 100)
+  *   --maxSize=BYTES   generated file sizes are spread up to this (default 8388608)
+  *   --fields=A,B      columns to show (default: all fields)
+  *   --threads=N       worker threads for delayed values (default 4)
+  *   --page=N          files per page (default 30)
+  *   --scroll=N        pages per second the user scrolls (default 2)
+  *   --stopRate=P      probability an outstanding value is abandoned on scrolling (default 0.5)
+  *   --seed=N          random seed (default 42)
+  * </pre>
+  *
+  * @author Matthias Kling (meisl)
+  */
+public class LoadSimulator {
+
+    public static void main(String... args) throws Exception {
+        Map<String, String> opts = new HashMap<>();
+        for (String arg: args) {
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("not an option: \"" + arg + "\"");
+            }
+            int i = arg.indexOf('=');
+            opts.put((i < 0) ? arg.substring(2) : arg.substring(2, i), (i < 0) ? "" : arg.substring(i + 1));
+        }
+        String pluginClass = opts.remove("plugin");
+        if (pluginClass == null) {
+            throw new IllegalArgumentException("missing --plugin=CLASS");
+        }
+        ContentPlugin plugin = (ContentPlugin)Class.forName(pluginClass).getDeclaredConstructor().newInstance();
+        LoadSimulator sim = new LoadSimulator(plugin, opts);
+        if (!opts.isEmpty()) {
+            throw new IllegalArgumentException("unknown option(s): " + opts.keySet());
+        }
+        sim.run(System.out);
+        System.exit(0);
+    }
+
+
+    /* ----- LoadSimulator: non-static members ----------------------------- */
+
+
+    private final ContentPlugin plugin;
+    private final Path root;
+    private final boolean isGenerated;
+    private final int dirs;
+    private final int filesPerDir;
+    private final long maxSize;
+    private final String fieldNames;
+    private final int threads;
+    private final int pageSize;
+    private final double scroll;
+    private final double stopRate;
+    private final Random random;
+
+    private final AtomicLong uiCalls = new AtomicLong();
+    private final AtomicLong immediate = new AtomicLong();
+    private final AtomicLong delayed = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong late = new AtomicLong();          // completed after its page was gone
+    private final AtomicLong dropped = new AtomicLong();       // abandoned before started
+    private final AtomicLong stopped = new AtomicLong();       // abandoned while running
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong stoppedNanos = new AtomicLong();
+    private final AtomicLong lateNanos = new AtomicLong();
+    private final AtomicLong workerNanos = new AtomicLong();
+
+    LoadSimulator(ContentPlugin plugin, Map<String, String> opts) throws IOException {
+        this.plugin = plugin;
+        String root = opts.remove("root");
+        this.isGenerated = (root == null);
+        this.root = isGenerated ? Files.createTempDirectory("wdx-load") : Paths.get(root);
+        this.dirs = Integer.parseInt(option(opts, "dirs", "4"));
+        this.filesPerDir = Integer.parseInt(option(opts, "files", "100"));
+        this.maxSize = Long.parseLong(option(opts, "maxSize", "8388608"));
+        this.fieldNames = option(opts, "fields", null);
+        this.threads = Integer.parseInt(option(opts, "threads", "4"));
+        this.pageSize = Integer.parseInt(option(opts, "page", "30"));
+        this.scroll = Double.parseDouble(option(opts, "scroll", "2"));
+        this.stopRate = Double.parseDouble(option(opts, "stopRate", "0.5"));
+        this.random = new Random(Long.parseLong(option(opts, "seed", "42")));
+    }
+
+    private static String option(Map<String, String> opts, String name, String dflt) {
+        String value = opts.remove(name);
+        return (value == null) ? dflt : value;
+    }
+
+    /** One value TC wants computed on a worker thread. */
+    private final class Work implements Runnable {
+        final String fileName;
+        final int fieldIndex;
+        private boolean isStarted = false;      // guarded by this
+        private boolean isDone = false;         // guarded by this
+        private boolean isAbandoned = false;    // guarded by this
+        private boolean isPageGone = false;     // guarded by this
+
+        Work(String fileName, int fieldIndex) {
+            this.fileName = fileName;
+            this.fieldIndex = fieldIndex;
+        }
+
+        public void run() {
+            synchronized (this) {
+                if (isAbandoned) {
+                    return;
+                }
+                isStarted = true;
+            }
+            long t = System.nanoTime();
+            int result = plugin.contentGetValue(fileName, fieldIndex, 0, new FieldValue(), 1024, 0);
+            t = System.nanoTime() - t;
+            workerNanos.addAndGet(t);
+            synchronized (this) {
+                isDone = true;
+                if (isAbandoned) {
+                    stoppedNanos.addAndGet(t);
+                } else if (isPageGone) {
+                    late.incrementAndGet();
+                    lateNanos.addAndGet(t);
+                } else if (result == FT_FILEERROR) {
+                    errors.incrementAndGet();
+                } else {
+                    completed.incrementAndGet();
+                }
+            }
+        }
+
+        /* Called when the user scrolls away; returns whether to call contentStopGetValue. */
+        synchronized boolean pageGone(boolean abandon) {
+            isPageGone = true;
+            if (isDone || !abandon) {
+                return false;
+            }
+            isAbandoned = true;
+            if (!isStarted) {
+                dropped.incrementAndGet();
+                return false;
+            }
+            stopped.incrementAndGet();
+            return true;
+        }
+    }
+
+    void run(PrintStream out) throws IOException, InterruptedException {
+        List<Integer> columns = columns();
+        if (isGenerated) {
+            out.println("generating " + dirs + " x " + filesPerDir + " files of up to " + maxSize + " bytes in \"" + root + "\"...");
+            generate();
+        }
+        List<List<Path>> folders = folders();
+
+        ThreadPoolExecutor workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+        long pageMillis = Math.max(0, Math.round(1000 / scroll));
+        int files = 0;
+        long t0 = System.nanoTime();
+        for (List<Path> folder: folders) {
+            if (folder.isEmpty()) {
+                continue;
+            }
+            plugin.contentSendStateInformation(CONTST_READNEWDIR, folder.get(0).getParent().toString());
+            for (int from = 0; from < folder.size(); from += pageSize) {
+                long pageStart = System.currentTimeMillis();
+                List<Work> page = new ArrayList<>();
+                for (Path file: folder.subList(from, Math.min(from + pageSize, folder.size()))) {
+                    files++;
+                    String fileName = file.toString();
+                    for (int fieldIndex: columns) {
+                        uiCalls.incrementAndGet();
+                        int result = plugin.contentGetValue(fileName, fieldIndex, 0, new FieldValue(), 1024, CONTENT_DELAYIFSLOW);
+                        if (result == FT_DELAYED) {
+                            delayed.incrementAndGet();
+                            Work w = new Work(fileName, fieldIndex);
+                            page.add(w);
+                            workers.execute(w);
+                        } else if (result == FT_FILEERROR) {
+                            errors.incrementAndGet();
+                        } else {
+                            immediate.incrementAndGet();
+                        }
+                    }
+                }
+                long left = pageStart + pageMillis - System.currentTimeMillis();
+                if (left > 0) {
+                    Thread.sleep(left);
+                }
+                // scroll on:
+                Set<String> toStop = new LinkedHashSet<>();
+                for (Work w: page) {
+                    if (w.pageGone(random.nextDouble() < stopRate)) {
+                        toStop.add(w.fileName);
+                    }
+                }
+                for (String fileName: toStop) {
+                    plugin.contentStopGetValue(fileName);
+                }
+            }
+        }
+        workers.shutdown();
+        workers.awaitTermination(1, TimeUnit.HOURS);
+        double seconds = (System.nanoTime() - t0) / 1e9;
+
+        long shown = immediate.get() + completed.get();
+        out.println(String.format("%s: %d folders, %d files, %d columns, %d threads, page %d, %.1f pages/s, stopRate %.2f",
+            plugin.getClass().getName(), folders.size(), files, columns.size(), threads, pageSize, scroll, stopRate));
+        out.println(String.format("  %.1f s, %d calls from UI thread: %d immediate, %d delayed, %d errors",
+            seconds, uiCalls.get(), immediate.get(), delayed.get(), errors.get()));
+        out.println(String.format("  throughput: %.1f values/s shown, %.1f values/s computed",
+            shown / seconds, (shown + late.get()) / seconds));
+        out.println(String.format("  delayed: %d completed in time (%.1f%%), %d completed late, %d dropped unstarted, %d stopped",
+            completed.get(), (delayed.get() == 0) ? 0.0 : 100.0 * completed.get() / delayed.get(), late.get(), dropped.get(), stopped.get()));
+        out.println(String.format("  wasted: %.1f ms in stopped calls, %.1f ms in late calls, of %.1f ms worker time (%.1f%%)",
+            stoppedNanos.get() / 1e6, lateNanos.get() / 1e6, workerNanos.get() / 1e6,
+            (workerNanos.get() == 0) ? 0.0 : 100.0 * (stoppedNanos.get() + lateNanos.get()) / workerNanos.get()));
+        out.println("  stops: " + plugin.getWorkItems().stopLatencies());
+        out.println("  READ " + plugin.getReadStats());
+        plugin.contentPluginUnloading();
+        if (isGenerated) {
+            delete(root);
+        }
+    }
+
+    /* The indices of the fields to show, as TC gets them. */
+    private List<Integer> columns() {
+        Set<String> wanted = (fieldNames == null) ? null : new HashSet<>(Arrays.asList(fieldNames.split(",")));
+        List<Integer> result = new ArrayList<>();
+        for (int i = 0; ; i++) {
+            StringBuffer name = new StringBuffer();
+            int type = plugin.contentGetSupportedField(i, name, new StringBuffer(), 260);
+            if (type == FT_NOMOREFIELDS) {
+                break;
+            }
+            if ((wanted == null) || wanted.remove(name.toString())) {
+                result.add(i);
+            }
+        }
+        if ((wanted != null) && !wanted.isEmpty()) {
+            throw new IllegalArgumentException("no such field(s): " + wanted);
+        }
+        return result;
+    }
+
+    private void generate() throws IOException {
+        byte[] chunk = new byte[1 << 16];
+        for (int d = 0; d < dirs; d++) {
+            Path dir = Files.createDirectory(root.resolve(String.format("dir%03d", d)));
+            for (int f = 0; f < filesPerDir; f++) {
+                // mostly small files, a few large ones - like a typical folder
+                long size = (long)(maxSize * Math.pow(random.nextDouble(), 4));
+                try (FileChannel out = FileChannel.open(dir.resolve(String.format("file%05d.bin", f)),
+                        StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE))
+                {
+                    for (long left = size; left > 0; left -= chunk.length) {
+                        random.nextBytes(chunk);
+                        ByteBuffer buf = ByteBuffer.wrap(chunk, 0, (int)Math.min(chunk.length, left));
+                        while (buf.hasRemaining()) {
+                            out.write(buf);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /* The files of each folder in the tree, in listing order (by name). */
+    private List<List<Path>> folders() throws IOException {
+        final SortedMap<Path, List<Path>> result = new TreeMap<>();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile()) {
+                    Path dir = file.getParent();
+                    if (!result.containsKey(dir)) {
+                        result.put(dir, new ArrayList<Path>());
+                    }
+                    result.get(dir).add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        for (List<Path> files: result.values()) {
+            Collections.sort(files);
+        }
+        return new ArrayList<>(result.values());
+    }
+
+    private static void delete(Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+}
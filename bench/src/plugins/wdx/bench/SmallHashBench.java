@@ -0,0 +1,61 @@
+package plugins.wdx.bench;
+
+import java.nio.ByteBuffer;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+
+/** Hashing many small inputs (a folder of small files), where getting a
+  * {@code Hash.Processor} and hex-encoding its value can cost more than the
+  * hashing itself: per operation, one Processor is created ({@code fresh})
+  * or taken from the per-thread pool ({@code pooled}), fed one heap buffer
+  * of {@code size} bytes, and its value returned as hex.
+  *
+  * @author Matthias Kling (meisl)
+  */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SmallHashBench {
+
+    @Param({"CRC32", "XXH64", "MD5", "SHA256"})
+    public String algorithm;
+
+    @Param({"fresh", "pooled"})
+    public String processor;
+
+    @Param({"4096"})
+    public int size;
+
+    private HashAdapter hashes;
+    private ByteBuffer buf;
+    private boolean isPooled;
+
+    @Setup
+    public void setup() {
+        hashes = HashAdapter.load();
+        if (!Arrays.asList(hashes.algorithms()).contains(algorithm)) {
+            throw new IllegalArgumentException("no such Hash: " + algorithm);
+        }
+        isPooled = "pooled".equals(processor);
+        byte[] bytes = new byte[size];
+        new Random(42).nextBytes(bytes);
+        buf = ByteBuffer.wrap(bytes);
+    }
+
+    @Benchmark
+    public String hex() {
+        HashAdapter.Processor p = isPooled ? hashes.acquireProcessor(algorithm) : hashes.newProcessor(algorithm);
+        p.update(buf.duplicate());
+        String result = p.hex();
+        p.release();
+        return result;
+    }
+
+}
@@ -0,0 +1,424 @@
+
+
+import java.io.*;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+
+import java.util.*;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import plugins.AlternateDataStream;
+import plugins.UncheckedIOException;
+import plugins.wdx.ContentPlugin;
+import plugins.wdx.Contents;
+import plugins.wdx.Tap;
+
+
+
+/** Hashes large files so that the work done isn't lost when it's stopped (eg. by
+  * {@code contentStopGetValue}, when the user scrolls away): every {@link #DEFAULT_INTERVAL}
+  * bytes, the Processor's state and the offset reached are kept as a checkpoint,
+  * and a later {@link #start} of the same file and Hash - while the file's size
+  * and last-modified time are the same - continues from the last one.
+  * <p>
+  * A {@link Run} is a {@link Tap}, fed by the plugin's {@link ContentPlugin#contents contents}
+  * like any other, so it reads with the plugin's buffers and strategies, is stopped
+  * along with its {@link plugins.wdx.WorkItem}, and, when starting at 0, shares its
+  * read with the other fields (see {@link ContentPlugin#valueFromContents}).
+  * <p>
+  * Checkpoints are kept in memory, as a copy of the Processor, and, if its state can
+  * be saved (see {@link Hash.Processor#saveState}), in the file's {@code :Hashes.partial.<HASH>}
+  * ADS, to survive the session:
+  * <pre>
+  *   "HP", version (2), {@link Hash#id} (1), file size (8), last-modified (8), offset (8),
+  *   fingerprint (8), n (4), state (n bytes), CRC32 of all before (4)
+  * </pre>
+  * all big endian. The checksums' state can always be saved; that of the digests only
+  * with the pure-Java {@link ResumableDigest}s, which are slower than the JDK's - so
+  * these are used only if system property {@code plugins.wdx.hashes.checkpoint.pureJava}
+  * is {@code true} (or to continue a checkpoint saved by one).
+  * <p>
+  * Each checkpoint also has a fingerprint (XXH64) of the {@link #FINGERPRINT_SIZE}
+  * bytes before its offset. If system property {@code plugins.wdx.hashes.checkpoint.append}
+  * is {@code true}, a checkpoint stays valid for a file that has grown since, as long as
+  * these bytes are the same - logs and capture files that are only appended to - and a
+  * final one is kept when done, so that rehashing a grown file only reads the bytes
+  * appended. Changes before the last block go unnoticed then, hence it's off by default.
+  *
+  * @author Matthias Kling (meisl)
+  */
+public class Checkpoints {
+
+    /** Bytes hashed between checkpoints; may be overridden by system property
+      * {@code plugins.wdx.hashes.checkpoint.interval}.
+      */
+    public static final long DEFAULT_INTERVAL = Long.getLong("plugins.wdx.hashes.checkpoint.interval", 64L << 20);
+
+    /** Files smaller than this are hashed without checkpoints (and along with the other
+      * fields, see {@link plugins.wdx.ContentPlugin#valueFromContents}); may be overridden
+      * by system property {@code plugins.wdx.hashes.checkpoint.minSize}.
+      */
+    public static final long DEFAULT_MIN_SIZE = Long.getLong("plugins.wdx.hashes.checkpoint.minSize", 1L << 30);
+
+    /** Whether digests are computed by {@link ResumableDigest}s, so their checkpoints
+      * survive the session; set by system property {@code plugins.wdx.hashes.checkpoint.pureJava}.
+      */
+    public static final boolean IS_PURE_JAVA = Boolean.getBoolean("plugins.wdx.hashes.checkpoint.pureJava");
+
+    /** Whether checkpoints are kept for files appended to; set by system property
+      * {@code plugins.wdx.hashes.checkpoint.append}.
+      */
+    public static final boolean IS_APPEND_AWARE = Boolean.getBoolean("plugins.wdx.hashes.checkpoint.append");
+
+    /** Number of bytes before a checkpoint's offset that must be unchanged to continue from it. */
+    public static final int FINGERPRINT_SIZE = 1 << 16;
+
+    public static final String STREAM_PREFIX = "Hashes.partial.";
+
+    private static final Log log = LogFactory.getLog(Checkpoints.class);
+
+    private static final int MAX_IN_MEMORY = 16;
+
+    /** A Processor's state at offset into a file of size, at lastModified. */
+    static final class Checkpoint {
+        static final int VERSION = 2;
+        private static final int HEADER_SIZE = 40;
+
+        final long size;
+        final long lastModified;
+        final long offset;
+        final long fingerprint;         // of the FINGERPRINT_SIZE bytes before offset
+        final Hash.Processor copy;      // null if not kept in memory
+        final byte[] state;             // null if not saved
+
+        Checkpoint(long size, long lastModified, long offset, long fingerprint, Hash.Processor copy, byte[] state) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.offset = offset;
+            this.fingerprint = fingerprint;
+            this.copy = copy;
+            this.state = state;
+        }
+
+        Checkpoint with(Hash.Processor copy) {
+            return new Checkpoint(size, lastModified, offset, fingerprint, copy, state);
+        }
+
+        boolean isValidFor(File file) {
+            return (file.length() == size) && (file.lastModified() == lastModified);
+        }
+
+        byte[] toBytes(Hash hash) {
+            ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + state.length + 4);
+            buf.put((byte)'H').put((byte)'P').put((byte)VERSION).put((byte)hash.id())
+                .putLong(size).putLong(lastModified).putLong(offset).putLong(fingerprint)
+                .putInt(state.length).put(state);
+            CRC32 crc = new CRC32();
+            crc.update(buf.array(), 0, buf.position());
+            buf.putInt((int)crc.getValue());
+            return buf.array();
+        }
+
+        /* null if bytes aren't a valid Checkpoint of hash */
+        static Checkpoint fromBytes(Hash hash, byte[] bytes) {
+            ByteBuffer buf = ByteBuffer.wrap(bytes);
+            if ((bytes.length < HEADER_SIZE + 4) || (buf.get() != 'H') || (buf.get() != 'P')
+                || (buf.get() != VERSION) || ((buf.get() & 0xFF) != hash.id()))
+            {
+                return null;
+            }
+            long size = buf.getLong();
+            long lastModified = buf.getLong();
+            long offset = buf.getLong();
+            long fingerprint = buf.getLong();
+            int n = buf.getInt();
+            if ((offset < 0) || (offset > size) || (n < 0) || (buf.remaining() != (long)n + 4)) {
+                return null;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, bytes.length - 4);
+            if (ByteBuffer.wrap(bytes, bytes.length - 4, 4).getInt() != (int)crc.getValue()) {
+                return null;
+            }
+            byte[] state = new byte[n];
+            buf.get(state);
+            return new Checkpoint(size, lastModified, offset, fingerprint, null, state);
+        }
+    }
+
+    private final ContentPlugin plugin;             // whose contents() are read
+    private final long interval;
+    private final long minSize;
+    private final boolean isAppendAware;
+    private final WriteBehind writes;               // null: write through
+
+    // by "<path>:<hash>", least recently used dropped:
+    private final Map<String, Checkpoint> memo = new LinkedHashMap<String, Checkpoint>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, Checkpoint> eldest) {
+            return size() > MAX_IN_MEMORY;
+        }
+    };
+
+    public Checkpoints(ContentPlugin plugin, long interval, long minSize, boolean isAppendAware, WriteBehind writes) {
+        this.plugin = plugin;
+        this.interval = interval;
+        this.minSize = minSize;
+        this.isAppendAware = isAppendAware;
+        this.writes = writes;
+    }
+
+    public Checkpoints(ContentPlugin plugin, WriteBehind writes) {
+        this(plugin, DEFAULT_INTERVAL, DEFAULT_MIN_SIZE, IS_APPEND_AWARE, writes);
+    }
+
+    /** Whether {@code file} is large enough to be hashed by a {@link Run}. */
+    public boolean isFor(File file) {
+        return file.length() >= minSize;
+    }
+
+    /** Starts computing {@code hash} of {@code file}, continuing from the last checkpoint, if any:
+      * the returned Run is to be fed the file's {@link ContentPlugin#contents contents} from
+      * its {@link Run#position} on.
+      */
+    public Run start(Hash hash, File file) throws IOException {
+        String key = file.getPath() + ":" + hash.name();
+        AlternateDataStream ads = new AlternateDataStream(file, STREAM_PREFIX + hash.name());
+        Run run = resume(hash, file, key, ads);
+        if (run != null) {
+            log.info("resuming " + hash + " of \"" + file.getPath() + "\" at " + run.offset + " of " + run.size + " bytes");
+            return run;
+        }
+        Hash.Processor p = IS_PURE_JAVA ? hash.newResumableProcessor() : null;
+        if (p == null) {
+            p = hash.newProcessor();
+        }
+        return new Run(hash, file, key, ads, ads.exists(), 0, new Tail(), p);
+    }
+
+    /** A computation of a Hash of one file, as a {@link Tap} fed its contents from
+      * {@link #position} on: every {@link Checkpoints#interval} bytes, a checkpoint is kept.
+      * If the read is stopped, {@link #stopped} keeps one at the offset reached.
+      */
+    public final class Run implements Tap<byte[]> {
+        private final Hash hash;
+        private final File file;
+        private final String key;
+        private final AlternateDataStream ads;
+        private final long size;
+        private final long lastModified;
+        private final long start;
+        private final Tail tail;
+        private final Hash.Processor p;
+        private boolean isStored;
+        private long offset;
+        private long nextCheckpoint;
+
+        private Run(Hash hash, File file, String key, AlternateDataStream ads, boolean isStored,
+                    long offset, Tail tail, Hash.Processor p)
+        {
+            this.hash = hash;
+            this.file = file;
+            this.key = key;
+            this.ads = ads;
+            this.size = file.length();
+            this.lastModified = file.lastModified();
+            this.isStored = isStored;
+            this.start = this.offset = offset;
+            this.nextCheckpoint = offset + interval;
+            this.tail = tail;
+            this.p = p;
+        }
+
+        /** The offset into the file to read from. */
+        public long position() {
+            return start;
+        }
+
+        public void update(ByteBuffer buf) {
+            int n = (int)Math.min(buf.remaining(), size - offset);  // ignore bytes appended meanwhile
+            ByteBuffer part = buf.duplicate();
+            part.limit(part.position() + n);
+            tail.append(part);
+            p.update(part);
+            offset += n;
+            if ((offset >= nextCheckpoint) && (offset < size)) {
+                try {
+                    isStored |= checkpoint(hash, file, key, size, lastModified, offset, tail.fingerprint(), p);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                nextCheckpoint = offset + interval;
+            }
+        }
+
+        public byte[] finish() throws IOException {
+            if (offset < size) {
+                throw new EOFException("file shrunk while hashing, at " + offset);
+            }
+            if (isAppendAware && (size > 0)) {  // for when it has grown
+                checkpoint(hash, file, key, size, lastModified, offset, tail.fingerprint(), p);
+            } else {
+                synchronized (memo) {
+                    memo.remove(key);
+                }
+                if (isStored) {
+                    delete(file, ads, size, lastModified);
+                }
+            }
+            return p.getValueAsBytes();
+        }
+
+        /** To be called when the read was stopped, rather than {@link #finish}:
+          * keeps a last checkpoint at the offset reached.
+          */
+        public void stopped() throws IOException {
+            if ((offset > start) && (offset < size)) {
+                checkpoint(hash, file, key, size, lastModified, offset, tail.fingerprint(), p);
+            }
+        }
+    }
+
+    /* A Run from the last checkpoint valid for file (see isValid), with a Processor of its own in its state, or null. */
+    private Run resume(Hash hash, File file, String key, AlternateDataStream ads) throws IOException {
+        boolean isStored = ads.exists();
+        Checkpoint c;
+        synchronized (memo) {
+            c = memo.get(key);
+        }
+        if ((c != null) && (c.copy != null)) {
+            Tail tail = isValid(c, file);
+            Hash.Processor p = (tail == null) ? null : c.copy.copy();
+            if (p != null) {
+                return new Run(hash, file, key, ads, isStored, c.offset, tail, p);
+            }
+        }
+        byte[] bytes = isStored ? ads.getBytes() : null;
+        if (bytes == null) {
+            return null;
+        }
+        c = Checkpoint.fromBytes(hash, bytes);
+        if (c == null) {
+            log.warn("invalid :" + ads.getRawName() + " on \"" + file.getPath() + "\" (" + bytes.length + " bytes) - ignored");
+            return null;
+        }
+        Tail tail = isValid(c, file);
+        if (tail == null) {
+            return null;
+        }
+        Hash.Processor p = hash.newResumableProcessor();
+        if ((p == null) || !p.restoreState(c.state)) {
+            log.warn("invalid state in :" + ads.getRawName() + " on \"" + file.getPath() + "\" - ignored");
+            return null;
+        }
+        return new Run(hash, file, key, ads, isStored, c.offset, tail, p);
+    }
+
+    /* The Tail before c's offset if file is as when c was made - or, if append aware,
+     * only appended to since; else null.
+     */
+    private Tail isValid(Checkpoint c, File file) throws IOException {
+        boolean isSame = c.isValidFor(file);
+        if (!isSame && (!isAppendAware || (file.length() < c.size))) {
+            return null;
+        }
+        Tail tail = new Tail();
+        tail.read(plugin, file.getPath(), c.offset);
+        if (tail.fingerprint() != c.fingerprint) {
+            return null;
+        }
+        if (!isSame && log.isDebugEnabled()) {
+            log.debug("\"" + file.getPath() + "\" appended to: " + c.size + " -> " + file.length() + " bytes");
+        }
+        return tail;
+    }
+
+    /* The last FINGERPRINT_SIZE bytes (or less, at the start) before an offset. */
+    private static final class Tail {
+        private final byte[] bytes = new byte[FINGERPRINT_SIZE];
+        private int length = 0;
+
+        /* Appends the remaining bytes of buf, leaving its position. */
+        void append(ByteBuffer buf) {
+            int n = Math.min(buf.remaining(), bytes.length);
+            int keep = Math.min(length, bytes.length - n);
+            System.arraycopy(bytes, length - keep, bytes, 0, keep);
+            ByteBuffer from = buf.duplicate();
+            from.position(buf.limit() - n);
+            from.get(bytes, keep, n);
+            length = keep + n;
+        }
+
+        /* Reads the bytes before offset from plugin's contents of fileName (fewer if it has shrunk). */
+        void read(ContentPlugin plugin, String fileName, long offset) throws IOException {
+            long position = offset - Math.min(offset, bytes.length);
+            Contents contents = plugin.contents(fileName, position);
+            try {
+                for (ByteBuffer buf: contents) {
+                    ByteBuffer part = buf.duplicate();
+                    part.limit(part.position() + (int)Math.min(part.remaining(), offset - position));
+                    append(part);
+                    position += part.remaining();
+                    if (position == offset) {
+                        contents.stop();    // the buffer goes back on the next call
+                    }
+                }
+            } catch (UncheckedIOException e) {
+                if ((position < offset) || !(e.getCause() instanceof AsynchronousCloseException)) {
+                    throw (IOException)e.getCause();
+                }
+            }
+        }
+
+        long fingerprint() {
+            XXH64 xxh = new XXH64();
+            xxh.update(bytes, 0, length);
+            return xxh.getValue();
+        }
+    }
+
+    /* Keeps p's state at offset; returns whether it's being stored in the ADS. */
+    private boolean checkpoint(final Hash hash, File file, String key, long size, long lastModified, long offset,
+                               long fingerprint, Hash.Processor p)
+        throws IOException
+    {
+        final Checkpoint c = new Checkpoint(size, lastModified, offset, fingerprint, p.copy(), p.saveState());
+        synchronized (memo) {
+            memo.put(key, c);
+        }
+        if ((c.state == null) || !file.canWrite()) {
+            return false;
+        }
+        final AlternateDataStream ads = new AlternateDataStream(file, STREAM_PREFIX + hash.name());
+        if (writes == null) {
+            if (c.isValidFor(file)) {
+                ads.setBytes(c.toBytes(hash));
+                file.setLastModified(lastModified); // reset to original
+            }
+        } else {
+            writes.enqueue(new WriteBehind.Write(file, ads.getRawName(), size, lastModified) {
+                protected void write() throws IOException {
+                    ads.setBytes(c.toBytes(hash));
+                }
+            });
+        }
+        return true;
+    }
+
+    private void delete(File file, final AlternateDataStream ads, long size, long lastModified) throws IOException {
+        if (writes == null) {
+            ads.deleteIfExists();
+            file.setLastModified(lastModified); // reset to original
+        } else {
+            writes.enqueue(new WriteBehind.Write(file, ads.getRawName(), size, lastModified) {
+                protected void write() throws IOException {
+                    ads.deleteIfExists();
+                }
+            });
+        }
+    }
+
+}
@@ -0,0 +1,180 @@
+
+
+import java.nio.ByteBuffer;
+
+import java.util.zip.Checksum;
+
+
+
+/** Makes one of the JDK's (intrinsified) 32-bit Checksums resumable: its
+  * state is just the value and length so far, because the value of a
+  * concatenation can be computed from the values of its parts and the
+  * second part's length - as zlib's {@code crc32_combine} and
+  * {@code adler32_combine} do. After {@link #restoreState}, the wrapped
+  * Checksum starts from scratch, and {@link #getValue} combines.
+  *
+  * @author Matthias Kling (meisl)
+  */
+public abstract class CombinedChecksum extends ResumableChecksum {
+
+    public static CombinedChecksum crc32() {
+        return new CombinedChecksum(new java.util.zip.CRC32()) {
+            long combine(long value1, long value2, long length2) {
+                return combineCrc(0xEDB88320L, value1, value2, length2);
+            }
+        };
+    }
+
+    public static CombinedChecksum crc32c() {
+        return new CombinedChecksum(new java.util.zip.CRC32C()) {
+            long combine(long value1, long value2, long length2) {
+                return combineCrc(0x82F63B78L, value1, value2, length2);
+            }
+        };
+    }
+
+    public static CombinedChecksum adler32() {
+        return new CombinedChecksum(new java.util.zip.Adler32()) {
+            long combine(long value1, long value2, long length2) {
+                return combineAdler32(value1, value2, length2);
+            }
+        };
+    }
+
+    private final Checksum checksum;
+    private long prefix;            // value of the bytes before those in checksum
+    private long prefixLength;
+    private long length;            // of the bytes in checksum
+
+    private CombinedChecksum(Checksum checksum) {
+        this.checksum = checksum;
+    }
+
+    /* The value of a || b, from the values of a and b and the length of b. */
+    abstract long combine(long value1, long value2, long length2);
+
+    public void update(int b) {
+        checksum.update(b);
+        length++;
+    }
+
+    public void update(byte[] b, int off, int len) {
+        checksum.update(b, off, len);
+        length += len;
+    }
+
+    public void update(ByteBuffer buf) {
+        length += buf.remaining();
+        checksum.update(buf);
+    }
+
+    public long getValue() {
+        return (prefixLength == 0) ? checksum.getValue() : combine(prefix, checksum.getValue(), length);
+    }
+
+    public void reset() {
+        checksum.reset();
+        prefix = 0;
+        prefixLength = 0;
+        length = 0;
+    }
+
+    /** The value (8) and the length so far (8), big endian. */
+    public byte[] saveState() {
+        return ByteBuffer.allocate(16).putLong(getValue()).putLong(prefixLength + length).array();
+    }
+
+    public boolean restoreState(byte[] state) {
+        reset();
+        if (state.length != 16) {
+            return false;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(state);
+        long value = buf.getLong();
+        long length = buf.getLong();
+        if ((value >>> 32 != 0) || (length < 0)) {
+            return false;
+        }
+        prefix = value;
+        prefixLength = length;
+        return true;
+    }
+
+/* ------------------------------------------------------------------------------------------ */
+
+    /* For reflected CRCs with all-ones init and final xor, like CRC32 and CRC32C:
+     * appending length2 zero bytes to a is a linear operator over GF(2), applied
+     * by squaring the operator for one zero bit.
+     */
+    static long combineCrc(long poly, long crc1, long crc2, long length2) {
+        if (length2 <= 0) {
+            return crc1;
+        }
+        long[] even = new long[32];     // operator for 2^n zero bits, n even
+        long[] odd = new long[32];      // ... n odd
+        odd[0] = poly;                  // one zero bit
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        square(even, odd);              // two zero bits
+        square(odd, even);              // four
+        do {                            // first square gives one zero byte
+            square(even, odd);
+            if ((length2 & 1) != 0) {
+                crc1 = times(even, crc1);
+            }
+            length2 >>= 1;
+            if (length2 == 0) {
+                break;
+            }
+            square(odd, even);
+            if ((length2 & 1) != 0) {
+                crc1 = times(odd, crc1);
+            }
+            length2 >>= 1;
+        } while (length2 != 0);
+        return crc1 ^ crc2;
+    }
+
+    private static long times(long[] matrix, long vector) {
+        long result = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) {
+                result ^= matrix[i];
+            }
+        }
+        return result;
+    }
+
+    private static void square(long[] result, long[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            result[n] = times(matrix, matrix[n]);
+        }
+    }
+
+    private static final long ADLER_BASE = 65521;
+
+    static long combineAdler32(long adler1, long adler2, long length2) {
+        long rem = length2 % ADLER_BASE;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = (rem * sum1) % ADLER_BASE;
+        sum1 += (adler2 & 0xFFFF) + ADLER_BASE - 1;
+        sum2 += ((adler1 >>> 16) & 0xFFFF) + ((adler2 >>> 16) & 0xFFFF) + ADLER_BASE - rem;
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum2 >= (ADLER_BASE << 1)) {
+            sum2 -= (ADLER_BASE << 1);
+        }
+        if (sum2 >= ADLER_BASE) {
+            sum2 -= ADLER_BASE;
+        }
+        return sum1 | (sum2 << 16);
+    }
+
+}
@@ -2,22 +2,49 @@
 
 import java.nio.ByteBuffer;
 
+import java.util.*;
 import java.util.zip.*;
 
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
+import plugins.wdx.FanOut;
+import plugins.wdx.Tap;
+
 
 
 public enum Hash {
-    CRC32(32, ProcessorFactory.fromChecksum(java.util.zip.CRC32.class)),
-    Adler32(32, ProcessorFactory.fromChecksum(java.util.zip.Adler32.class)),
-    MD2(128, ProcessorFactory.fromMessageDigest("MD2")),
-    MD5(128, ProcessorFactory.fromMessageDigest("MD5")),
-    SHA1(160, ProcessorFactory.fromMessageDigest("SHA1")),
-    SHA256(256, ProcessorFactory.fromMessageDigest("SHA-256")),
-    SHA384(384, ProcessorFactory.fromMessageDigest("SHA-384")),
-    SHA512(512, ProcessorFactory.fromMessageDigest("SHA-512"));
+    // ids are stored in HashCache records - never change or reuse them
+    CRC32(1, 32, new ChecksumFactory() {
+        ResumableChecksum newChecksum() {
+            return CombinedChecksum.crc32();
+        }
+    }),
+    Adler32(2, 32, new ChecksumFactory() {
+        ResumableChecksum newChecksum() {
+            return CombinedChecksum.adler32();
+        }
+    }),
+    MD2(3, 128, ProcessorFactory.fromMessageDigest("MD2")),
+    MD5(4, 128, ProcessorFactory.fromMessageDigest("MD5")),
+    SHA1(5, 160, ProcessorFactory.fromMessageDigest("SHA1")),
+    SHA256(6, 256, ProcessorFactory.fromMessageDigest("SHA-256")),
+    SHA384(7, 384, ProcessorFactory.fromMessageDigest("SHA-384")),
+    SHA512(8, 512, ProcessorFactory.fromMessageDigest("SHA-512")),
+    // tree (Merkle) variants, see TreeHash:
+    SHA256_TREE(9, 256, ProcessorFactory.tree("SHA-256")),
+    SHA512_TREE(10, 512, ProcessorFactory.tree("SHA-512")),
+    // fast, non-cryptographic - for dedupe and change detection:
+    CRC32C(11, 32, new ChecksumFactory() {
+        ResumableChecksum newChecksum() {
+            return CombinedChecksum.crc32c();   // intrinsified on x86/aarch64
+        }
+    }),
+    XXH64(12, 64, new ChecksumFactory() {
+        ResumableChecksum newChecksum() {
+            return new XXH64();
+        }
+    });
 
 
     public static abstract class Processor {
@@ -32,17 +59,104 @@ public enum Hash {
 
         public abstract byte[] getValueAsBytes();
 
+        /** Back to the initial state, as if just created. */
+        public abstract Processor reset();
+
         public String getValue() {
-            StringBuilder result = new StringBuilder();
-            byte[] bytes = this.getValueAsBytes();
-            for (int i = 0; i < bytes.length; i++) {
-                int b = bytes[i] & 0xFF;
-                if (b < 0x10) {
-                    result.append(0);
+            return toHex(this.getValueAsBytes());
+        }
+
+        /** The state after the bytes so far, to be continued by {@link #restoreState}
+          * (eg. in a later session), or {@code null} if this Processor can't; see
+          * {@link Hash#newResumableProcessor}.
+          */
+        public byte[] saveState() {
+            return null;
+        }
+
+        /** Continues from {@code state}, as saved by {@link #saveState} of a Processor
+          * of the same Hash; returns {@code false} (and is reset) if it can't.
+          */
+        public boolean restoreState(byte[] state) {
+            this.reset();
+            return false;
+        }
+
+        /** A new Processor in the same state as this, or {@code null} if this can't be copied. */
+        public Processor copy() {
+            byte[] state = this.saveState();
+            if (state == null) {
+                return null;
+            }
+            Processor result = hash.newResumableProcessor();
+            result.restoreState(state);
+            return result;
+        }
+
+        /** Resets this and hands it to the current thread's pool (see {@link Hash#acquire});
+          * it must not be used any more after.
+          */
+        public void release() {
+            this.reset();
+            Processor[] pool = idle.get();
+            if (pool[hash.ordinal()] == null) {
+                pool[hash.ordinal()] = this;
+            }
+        }
+
+    }
+
+    /** Computes several Hashes in one pass over the same buffers, each
+      * on its own core (see {@link FanOut}).
+      */
+    public static final class MultiProcessor {
+
+        private final Map<Hash, Processor> processors = new EnumMap<>(Hash.class);    // pooled
+        private final List<Tap<Void>> lanes = new ArrayList<>();
+
+        public MultiProcessor(Collection<Hash> hashes) {
+            for (Hash hash: hashes) {
+                if (!processors.containsKey(hash)) {
+                    final Processor p = hash.acquire();
+                    processors.put(hash, p);
+                    lanes.add(new Tap<Void>() {
+                        public void update(ByteBuffer buf) {
+                            p.update(buf);
+                        }
+                        public Void finish() {
+                            return null;
+                        }
+                    });
                 }
-                result.append(Integer.toString(b, 16));
             }
-            return result.toString();
+        }
+
+        public MultiProcessor(Hash... hashes) {
+            this(Arrays.asList(hashes));
+        }
+
+        /** Feeds the remaining bytes of {@code buf} to all processors,
+          * returning when all are done with it.
+          */
+        public MultiProcessor update(ByteBuffer buf) {
+            FanOut.update(lanes, buf);
+            return this;
+        }
+
+        public Processor processor(Hash hash) {
+            return processors.get(hash);
+        }
+
+        /** The hex value of each Hash, in declaration order; the processors
+          * go back to the pool, so this must be called only once.
+          */
+        public Map<Hash, String> getValues() {
+            Map<Hash, String> result = new EnumMap<>(Hash.class);
+            for (Processor p: processors.values()) {
+                result.put(p.hash, p.getValue());
+                p.release();
+            }
+            return result;
         }
 
     }
@@ -51,74 +165,128 @@ public enum Hash {
 
         public abstract Processor newProcessor(Hash hash);
 
-        public static ProcessorFactory fromChecksum(final Class<? extends java.util.zip.Checksum> checksumClass) {
+        /* A Processor that can save and restore its state, or null if there is none. */
+        Processor newResumableProcessor(Hash hash) {
+            return null;
+        }
+
+        TreeHash tree() {
+            return null;
+        }
+
+        public static ProcessorFactory tree(final String algorithmName) {
             return new ProcessorFactory() {
+                private final TreeHash tree = new TreeHash(algorithmName);
+
+                TreeHash tree() {
+                    return tree;
+                }
+
+                public Processor newProcessor(Hash hash) {
+                    return tree.newProcessor(hash);
+                }
+            };
+        }
 
-                Checksum checksumInstance() {
+        public static ProcessorFactory fromMessageDigest(final String algorithmName) {
+            return new ProcessorFactory() {
+
+                public Processor newProcessor(Hash hash) {
                     try {
-                        return checksumClass.newInstance();
-                    } catch (IllegalAccessException e) {
-                        throw new RuntimeException(e);
-                    } catch (InstantiationException e) {
+                        return newProcessor(hash, MessageDigest.getInstance(algorithmName));
+                    } catch (NoSuchAlgorithmException e) {
                         throw new RuntimeException(e);
                     }
                 }
 
-                public Processor newProcessor(final Hash hash) {
-                    return new Processor(hash) {
-                        private Checksum cs = checksumInstance();
-                        private byte[] byteArray = null;
+                Processor newResumableProcessor(Hash hash) {
+                    ResumableDigest md = ResumableDigest.getInstance(algorithmName);
+                    return (md == null) ? null : newProcessor(hash, md);
+                }
 
+                private Processor newProcessor(Hash hash, final MessageDigest md) {
+                    return new Processor(hash) {
                         public Processor update(ByteBuffer buf) {
-                            if (buf.hasArray()) {
-                                byte[] byteArray = buf.array();
-                                cs.update(byteArray, buf.arrayOffset(), buf.remaining());
-                                buf.position(buf.limit());
-                            } else {
-                                if (this.byteArray == null) {
-                                    this.byteArray = new byte[buf.capacity()];
-                                }
-                                while (buf.remaining() >= this.byteArray.length) {
-                                    buf.get(this.byteArray);
-                                }
-                                int n = buf.remaining();
-                                if (n > 0) {
-                                    buf.get(this.byteArray, 0, n);
-                                    cs.update(this.byteArray, 0, n);
-                                }
-                            }
+                            md.update(buf);
+                            return this;
+                        }
+
+                        public Processor reset() {
+                            md.reset();
                             return this;
                         }
 
                         public byte[] getValueAsBytes() {
-                            final long value = cs.getValue();
-                            return new byte[] { (byte)(value >> 24), (byte)(value >> 16), (byte)(value >> 8), (byte)value };
+                            return md.digest();
+                        }
+
+                        public byte[] saveState() {
+                            return (md instanceof ResumableDigest) ? ((ResumableDigest)md).saveState() : null;
+                        }
+
+                        public boolean restoreState(byte[] state) {
+                            if (md instanceof ResumableDigest) {
+                                return ((ResumableDigest)md).restoreState(state);
+                            }
+                            return super.restoreState(state);
+                        }
+
+                        public Processor copy() {
+                            try {
+                                return newProcessor(hash, (MessageDigest)md.clone());     // the JDK's are Cloneable
+                            } catch (CloneNotSupportedException e) {
+                                return super.copy();
+                            }
                         }
                     };
                 }
             };
         }
+    }
 
-        public static ProcessorFactory fromMessageDigest(final String algorithmName) {
-            return new ProcessorFactory() {
+    /** Processors around a {@link Checksum} of up to 64 bits, fed with
+      * {@link Checksum#update(ByteBuffer)} - no copying, heap, direct or mapped
+      * (the JDK's CRC32, CRC32C and Adler32 read direct buffers by address).
+      * All of them are resumable.
+      */
+    static abstract class ChecksumFactory extends ProcessorFactory {
 
-                public Processor newProcessor(final Hash hash) {
-                    try {
-                        return new Processor(hash) {
-                            MessageDigest md = MessageDigest.getInstance(algorithmName);
+        abstract ResumableChecksum newChecksum();
 
-                            public Processor update(ByteBuffer buf) {
-                                md.update(buf);
-                                return this;
-                            }
+        Processor newResumableProcessor(Hash hash) {
+            return newProcessor(hash);
+        }
 
-                            public byte[] getValueAsBytes() {
-                                return md.digest();
-                            }
-                        };
-                    } catch (NoSuchAlgorithmException e) {
-                        throw new RuntimeException(e);
+        public Processor newProcessor(final Hash hash) {
+            return new Processor(hash) {
+                private final ResumableChecksum cs = newChecksum();
+
+                public Processor update(ByteBuffer buf) {
+                    cs.update(buf);
+                    return this;
+                }
+
+                public Processor reset() {
+                    cs.reset();
+                    return this;
+                }
+
+                public byte[] getValueAsBytes() {
+                    long value = cs.getValue();
+                    byte[] result = new byte[hash.bitLength() / 8];
+                    for (int i = result.length - 1; i >= 0; i--) {
+                        result[i] = (byte)value;
+                        value >>>= 8;
                     }
+                    return result;
+                }
+
+                public byte[] saveState() {
+                    return cs.saveState();
+                }
+
+                public boolean restoreState(byte[] state) {
+                    return cs.restoreState(state);
                 }
             };
         }
@@ -126,14 +294,61 @@ public enum Hash {
 
 /* ------------------------------------------------------------------------------------------ */
 
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    public static String toHex(byte[] bytes) {
+        char[] result = new char[bytes.length * 2];
+        for (int i = 0, j = 0; i < bytes.length; i++) {
+            int b = bytes[i];
+            result[j++] = HEX_DIGITS[(b >> 4) & 0xF];
+            result[j++] = HEX_DIGITS[b & 0xF];
+        }
+        return new String(result);
+    }
+
+    /** The bytes denoted by {@code hex}, or {@code null} if it isn't an even number of hex digits. */
+    public static byte[] fromHex(CharSequence hex) {
+        int n = hex.length();
+        if ((n & 1) != 0) {
+            return null;
+        }
+        byte[] result = new byte[n / 2];
+        for (int i = 0; i < n; i += 2) {
+            int hi = Character.digit(hex.charAt(i), 16);
+            int lo = Character.digit(hex.charAt(i + 1), 16);
+            if ((hi < 0) || (lo < 0)) {
+                return null;
+            }
+            result[i / 2] = (byte)((hi << 4) | lo);
+        }
+        return result;
+    }
+
+    /** The Hash with {@link #id} {@code id}, or {@code null} if there is none. */
+    public static Hash byId(int id) {
+        for (Hash h: values()) {
+            if (h.id == id) {
+                return h;
+            }
+        }
+        return null;
+    }
+
+    private final int id;
     private final int bitLength;
     private ProcessorFactory factory;
 
-    Hash(int bitLength, ProcessorFactory factory) {
+    Hash(int id, int bitLength, ProcessorFactory factory) {
+        this.id = id;
         this.bitLength = bitLength;
         this.factory = factory;
     }
 
+    /** Stable id (unlike the ordinal), for persisting. */
+    public int id() {
+        return this.id;
+    }
+
     public int bitLength() {
         return this.bitLength;
     }
@@ -142,28 +357,82 @@ public enum Hash {
         return this.factory.newProcessor(this);
     }
 
+    /** A new Processor that can save and restore its state (see {@link Processor#saveState}),
+      * or {@code null} if this Hash has none. For digests (but MD2), it's a pure-Java one
+      * (see {@link ResumableDigest}), slower than {@link #newProcessor}'s.
+      */
+    public Processor newResumableProcessor() {
+        return this.factory.newResumableProcessor(this);
+    }
+
+    // per thread, one idle Processor per Hash (by ordinal):
+    private static final ThreadLocal<Processor[]> idle = new ThreadLocal<Processor[]>() {
+        protected Processor[] initialValue() {
+            return new Processor[values().length];
+        }
+    };
+
+    /** A Processor in its initial state from the current thread's pool, or
+      * a new one if there is none; hand it back with {@link Processor#release}
+      * when done - saving the provider lookup and allocations of {@link #newProcessor}
+      * across many small files.
+      */
+    public Processor acquire() {
+        Processor[] pool = idle.get();
+        Processor result = pool[this.ordinal()];
+        if (result == null) {
+            return newProcessor();
+        }
+        pool[this.ordinal()] = null;
+        return result;
+    }
+
+    /** For tree Hashes, the TreeHash computing them in parallel; {@code null} for linear ones. */
+    public TreeHash tree() {
+        return this.factory.tree();
+    }
+
     public String getValue(ByteBuffer buf) {
-        return newProcessor().update(buf).getValue();
+        Processor p = acquire();
+        String result = p.update(buf).getValue();
+        p.release();
+        return result;
     }
 
     public byte[] getValueAsBytes(ByteBuffer buf) {
-        return newProcessor().update(buf).getValueAsBytes();
+        Processor p = acquire();
+        byte[] result = p.update(buf).getValueAsBytes();
+        p.release();
+        return result;
     }
 
     public String getValue(Iterable<ByteBuffer> bufs) {
-        Processor p = newProcessor();
+        Processor p = acquire();
+        for (ByteBuffer buf: bufs) {
+            p.update(buf);
+        }
+        String result = p.getValue();
+        p.release();
+        return result;
+    }
+
+    /** Computes all of {@code hashes} in one pass over {@code bufs}. */
+    public static Map<Hash, String> getValues(Iterable<ByteBuffer> bufs, Hash... hashes) {
+        MultiProcessor p = new MultiProcessor(hashes);
         for (ByteBuffer buf: bufs) {
             p.update(buf);
         }
-        return p.getValue();
+        return p.getValues();
     }
 
     public byte[] getValueAsBytes(Iterable<ByteBuffer> bufs) {
-        Processor p = newProcessor();
+        Processor p = acquire();
         for (ByteBuffer buf: bufs) {
             p.update(buf);
         }
-        return p.getValueAsBytes();
+        byte[] result = p.getValueAsBytes();
+        p.release();
+        return result;
     }
 
 }
@@ -0,0 +1,376 @@
+
+
+import java.io.*;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import plugins.AlternateDataStream;
+
+
+
+/** The digests computed for a file, kept in one ADS {@code :Hashes} as a compact
+  * binary record, valid as long as the file's size and last-modified time are
+  * the same as recorded. Parsed without regex or char decoding:
+  * <pre>
+  *   offset  size
+  *        0     2   magic "HC"
+  *        2     1   format version (1)
+  *        3     1   number n of digests
+  *        4     8   file size (big endian)
+  *       12     8   file's last-modified time in ms (big endian)
+  *       20         n times: {@link Hash#id} (1), digest length (1), digest
+  * </pre>
+  * Digests with unknown ids are kept as they are, so a record written by a
+  * newer plugin version survives an older one.
+  * <p>
+  * The legacy per-algorithm streams {@code :Hash.<ALG>} (text {@code <hex>@<storedAt>})
+  * are still read, if a file has no record yet, and moved into a new record - served
+  * from memory right away; the record is written and the legacy streams are deleted
+  * like any other write (behind, if there is a queue), and only if the file is writable.
+  * <p>
+  * The most recently used records are kept in memory, so showing several hash
+  * columns costs one small read per file. New digests are written behind
+  * (see {@link WriteBehind}) if a queue is given; until then, they are
+  * served from memory.
+  *
+  * @author Matthias Kling (meisl)
+  */
+public class HashCache {
+
+    public static final String STREAM_NAME = "Hashes";
+    public static final String LEGACY_STREAM_PREFIX = "Hash.";
+    public static final int VERSION = 1;
+
+    /** Number of records kept in memory; may be overridden by system property
+      * {@code plugins.wdx.hashes.cache.maxEntries}.
+      */
+    public static final int DEFAULT_MAX_ENTRIES = Integer.getInteger("plugins.wdx.hashes.cache.maxEntries", 1024);
+
+    private static final Log log = LogFactory.getLog(HashCache.class);
+
+    private static final int HEADER_SIZE = 20;
+
+    /** An immutable record; the digest arrays must not be modified. */
+    public static final class Record {
+
+        public final long size;
+        public final long lastModified;
+        private final Map<Integer, byte[]> digests;     // by Hash id, unknown ids included
+
+        Record(long size, long lastModified, Map<Integer, byte[]> digests) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.digests = digests;
+        }
+
+        Record(long size, long lastModified) {
+            this(size, lastModified, Collections.<Integer, byte[]>emptyMap());
+        }
+
+        public boolean isValidFor(long size, long lastModified) {
+            return (this.size == size) && (this.lastModified == lastModified);
+        }
+
+        public byte[] digest(Hash hash) {
+            return digests.get(hash.id());
+        }
+
+        public boolean isEmpty() {
+            return digests.isEmpty();
+        }
+
+        Record with(Hash hash, byte[] digest) {
+            Map<Integer, byte[]> digests = new TreeMap<>(this.digests);
+            digests.put(hash.id(), digest);
+            return new Record(size, lastModified, digests);
+        }
+
+        public byte[] toBytes() {
+            int n = HEADER_SIZE;
+            for (byte[] d: digests.values()) {
+                n += 2 + d.length;
+            }
+            byte[] result = new byte[n];
+            result[0] = 'H';
+            result[1] = 'C';
+            result[2] = VERSION;
+            result[3] = (byte)digests.size();
+            putLong(result, 4, size);
+            putLong(result, 12, lastModified);
+            int i = HEADER_SIZE;
+            for (Map.Entry<Integer, byte[]> e: digests.entrySet()) {
+                byte[] d = e.getValue();
+                result[i++] = (byte)(int)e.getKey();
+                result[i++] = (byte)d.length;
+                System.arraycopy(d, 0, result, i, d.length);
+                i += d.length;
+            }
+            return result;
+        }
+
+        /** Parses {@code bytes}; returns {@code null} if they aren't a record this version understands. */
+        public static Record fromBytes(byte[] bytes) {
+            if ((bytes.length < HEADER_SIZE) || (bytes[0] != 'H') || (bytes[1] != 'C') || (bytes[2] != VERSION)) {
+                return null;
+            }
+            int n = bytes[3] & 0xFF;
+            Map<Integer, byte[]> digests = new TreeMap<>();
+            int i = HEADER_SIZE;
+            for (int k = 0; k < n; k++) {
+                if (i + 2 > bytes.length) {
+                    return null;
+                }
+                int id = bytes[i++] & 0xFF;
+                int length = bytes[i++] & 0xFF;
+                if (i + length > bytes.length) {
+                    return null;
+                }
+                Hash hash = Hash.byId(id);
+                if ((hash != null) && (length != hash.bitLength() / 8)) {
+                    return null;
+                }
+                digests.put(id, Arrays.copyOfRange(bytes, i, i + length));
+                i += length;
+            }
+            return new Record(getLong(bytes, 4), getLong(bytes, 12), digests);
+        }
+
+        private static void putLong(byte[] bytes, int offset, long value) {
+            for (int i = 7; i >= 0; i--) {
+                bytes[offset + i] = (byte)value;
+                value >>>= 8;
+            }
+        }
+
+        private static long getLong(byte[] bytes, int offset) {
+            long result = 0;
+            for (int i = 0; i < 8; i++) {
+                result = (result << 8) | (bytes[offset + i] & 0xFF);
+            }
+            return result;
+        }
+
+        public String toString() {
+            StringBuilder result = new StringBuilder();
+            result.append(size).append(" bytes @").append(lastModified);
+            for (Map.Entry<Integer, byte[]> e: digests.entrySet()) {
+                Hash hash = Hash.byId(e.getKey());
+                result.append(' ').append((hash == null) ? "#" + e.getKey() : hash.name())
+                    .append('=').append(Hash.toHex(e.getValue()));
+            }
+            return result.toString();
+        }
+    }
+
+    private final int maxEntries;
+
+    private final Map<String, Record> memo;     // guarded by itself
+
+    private final WriteBehind writes;           // null: write through
+
+    private final Map<String, Record> unwritten = new ConcurrentHashMap<>();  // queued in writes, by path
+
+    private final Object[] locks = new Object[64];
+
+    public HashCache(int maxEntries, WriteBehind writes) {
+        this.maxEntries = maxEntries;
+        this.writes = writes;
+        this.memo = new LinkedHashMap<String, Record>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, Record> eldest) {
+                return size() > HashCache.this.maxEntries;
+            }
+        };
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    public HashCache(WriteBehind writes) {
+        this(DEFAULT_MAX_ENTRIES, writes);
+    }
+
+    public HashCache() {
+        this(DEFAULT_MAX_ENTRIES, null);
+    }
+
+    /** The stored digest of {@code file} for {@code hash}, or {@code null}
+      * if there is none for the file's current size and last-modified time.
+      */
+    public byte[] get(File file, Hash hash) throws IOException {
+        return record(file, file.length(), file.lastModified()).digest(hash);
+    }
+
+    /** Stores {@code digest} as {@code file}'s {@code hash}, computed while the
+      * file had {@code size} and {@code lastModified}; digests of other Hashes
+      * stored for the same size and time are kept. Written behind if there is
+      * a queue, else right away; only if the file is still unchanged then, and
+      * restoring its last-modified time afterwards.
+      */
+    public void put(final File file, long size, long lastModified, Hash hash, byte[] digest) throws IOException {
+        final Record record;
+        synchronized (lockFor(file)) {
+            record = record(file, size, lastModified).with(hash, digest);
+            synchronized (memo) {
+                memo.put(file.getPath(), record);
+            }
+            if (writes == null) {
+                if (file.canWrite() && (file.length() == size) && (file.lastModified() == lastModified)) {
+                    write(file, record);
+                }
+                return;
+            }
+            unwritten.put(file.getPath(), record);
+        }
+        writes.enqueue(writeOf(file, record));
+    }
+
+    /* The queued write of record to file's :Hashes. */
+    private WriteBehind.Write writeOf(final File file, final Record record) {
+        return new WriteBehind.Write(file, STREAM_NAME, record.size, record.lastModified) {
+            protected void write() throws IOException {
+                synchronized (lockFor(file)) {
+                    try {
+                        HashCache.this.write(file, record);
+                    } finally {
+                        unwritten.remove(file.getPath(), record);
+                    }
+                }
+            }
+
+            protected void discard() {
+                unwritten.remove(file.getPath(), record);
+            }
+        };
+    }
+
+    /* The valid record for file at size and lastModified - from memory (incl. unwritten),
+     * the ADS or the legacy streams; an empty one if there is none.
+     */
+    private Record record(File file, long size, long lastModified) throws IOException {
+        String key = file.getPath();
+        Record record;
+        synchronized (memo) {
+            record = memo.get(key);
+        }
+        if ((record != null) && record.isValidFor(size, lastModified)) {
+            return record;
+        }
+        record = unwritten.get(key);
+        if ((record != null) && record.isValidFor(size, lastModified)) {
+            synchronized (memo) {
+                memo.put(key, record);
+            }
+            return record;
+        }
+        byte[] bytes = new AlternateDataStream(file, STREAM_NAME).getBytes();
+        if (bytes == null) {
+            record = migrate(file, size, lastModified);
+        } else {
+            record = Record.fromBytes(bytes);
+            if (record == null) {
+                log.warn("invalid :" + STREAM_NAME + " on \"" + file.getPath() + "\" (" + bytes.length + " bytes) - ignored");
+                record = new Record(size, lastModified);
+            } else if (!record.isValidFor(size, lastModified)) {
+                if (log.isDebugEnabled()) {
+                    log.debug("outdated :" + STREAM_NAME + " on \"" + file.getPath() + "\": " + record);
+                }
+                record = new Record(size, lastModified);
+            }
+        }
+        synchronized (memo) {
+            memo.put(key, record);
+        }
+        return record;
+    }
+
+    /* Reads the legacy :Hash.* streams still valid for file at lastModified into a record,
+     * which is to be written to :Hashes if not empty, and the legacy streams deleted - if
+     * the file is writable, and never failing the read path (called from get()).
+     */
+    private Record migrate(final File file, long size, long lastModified) throws IOException {
+        Record record = new Record(size, lastModified);
+        boolean isAnyLegacy = false;
+        for (Hash hash: Hash.values()) {
+            AlternateDataStream ads = new AlternateDataStream(file, LEGACY_STREAM_PREFIX + hash.name());
+            if (!ads.exists()) {
+                continue;
+            }
+            isAnyLegacy = true;
+            String contents = ads.getContents();
+            byte[] digest = null;
+            int at = contents.indexOf('@');
+            if ((at == hash.bitLength() / 4) && (at < contents.length() - 1)) {
+                digest = Hash.fromHex(contents.substring(0, at));
+                try {
+                    long storedAt = Long.parseLong(contents.substring(at + 1), 10);
+                    if (lastModified > storedAt) {
+                        log.warn("invalid :" + ads.getRawName() + " " + contents + " on \"" + file.getPath() + "\" - outdated by " + (lastModified - storedAt) + " ms");
+                        digest = null;
+                    }
+                } catch (NumberFormatException e) {
+                    digest = null;
+                }
+            }
+            if (digest != null) {
+                record = record.with(hash, digest);
+            } else {
+                log.warn("invalid :" + ads.getRawName() + " " + contents + " on \"" + file.getPath() + "\" - dropped");
+            }
+        }
+        if (!isAnyLegacy || !file.canWrite()) {
+            return record;  // migrated once writable
+        }
+        final boolean isEmpty = record.isEmpty();
+        if (!isEmpty) {
+            log.info("migrating :" + LEGACY_STREAM_PREFIX + "* to :" + STREAM_NAME + " on \"" + file.getPath() + "\": " + record);
+        }
+        if (writes == null) {
+            synchronized (lockFor(file)) {
+                try {
+                    if (!isEmpty) {
+                        write(file, record);
+                    }
+                    deleteLegacy(file);
+                    file.setLastModified(lastModified); // reset to original
+                } catch (IOException e) {
+                    log.warn("migrating :" + LEGACY_STREAM_PREFIX + "* on \"" + file.getPath() + "\" failed: " + e);
+                }
+            }
+            return record;
+        }
+        if (!isEmpty) {
+            unwritten.put(file.getPath(), record);
+            writes.enqueue(writeOf(file, record));
+        }
+        // a stream name of its own, so a later put() doesn't replace it:
+        writes.enqueue(new WriteBehind.Write(file, LEGACY_STREAM_PREFIX + "*", size, lastModified) {
+            protected void write() throws IOException {
+                if (!isEmpty && !new AlternateDataStream(file, STREAM_NAME).exists()) {
+                    throw new IOException(":" + STREAM_NAME + " not written yet");   // retried
+                }
+                deleteLegacy(file);
+            }
+        });
+        return record;
+    }
+
+    private void deleteLegacy(File file) throws IOException {
+        for (Hash hash: Hash.values()) {
+            new AlternateDataStream(file, LEGACY_STREAM_PREFIX + hash.name()).deleteIfExists();
+        }
+    }
+
+    private void write(File file, Record record) throws IOException {
+        new AlternateDataStream(file, STREAM_NAME).setBytes(record.toBytes());
+        file.setLastModified(record.lastModified); // reset to original
+    }
+
+    private Object lockFor(File file) {
+        return locks[(file.getPath().hashCode() & 0x7FFFFFFF) % locks.length];
+    }
+
+}
@@ -0,0 +1,216 @@
+
+
+import java.io.*;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import plugins.wdx.WorkItem;
+
+
+
+/** Batch hashing: walks directory trees in parallel on a work-stealing (ForkJoin)
+  * pool, hashes every regular file and writes one line per file in the format of
+  * {@code sha256sum}/{@code md5sum} ({@code <hex>  <path>}, checkable with
+  * {@code sha256sum -c}). Lines come in completion order, not sorted.
+  * <p>
+  * Digests are taken from, and stored to, the files' {@code :Hashes} ADS just as
+  * in TC (see {@link HashCache}), so a nightly run only reads new or changed
+  * files. Reading is limited to {@code --io} files at a time (cache lookups
+  * don't count), so that a share isn't trashed by seeks. The MB/s in the summary
+  * are of the bytes actually read, as counted by a {@link WorkItem} per file.
+  * <p>
+  * Usage: {@code Hashes sum [options] PATH...}, options:
+  * <pre>
+  *   --hash=NAME     one of {@link Hash} (default SHA256)
+  *   --threads=N     pool size (default: number of cores)
+  *   --io=N          files read at the same time (default 2)
+  *   --out=FILE      write lines to FILE instead of stdout
+  * </pre>
+  * A summary goes to stderr. Exit status 1 if any file couldn't be hashed.
+  *
+  * @author Matthias Kling (meisl)
+  */
+public class HashSum {
+
+    public static void main(String... args) throws IOException {
+        Hash hash = Hash.SHA256;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int io = 2;
+        String out = null;
+        List<Path> roots = new ArrayList<>();
+        for (String arg: args) {
+            if (arg.startsWith("--hash=")) {
+                hash = Hash.valueOf(arg.substring(7));
+            } else if (arg.startsWith("--threads=")) {
+                threads = Integer.parseInt(arg.substring(10));
+            } else if (arg.startsWith("--io=")) {
+                io = Integer.parseInt(arg.substring(5));
+            } else if (arg.startsWith("--out=")) {
+                out = arg.substring(6);
+            } else if (arg.startsWith("--")) {
+                throw new IllegalArgumentException("unknown option \"" + arg + "\"");
+            } else {
+                roots.add(Paths.get(arg));
+            }
+        }
+        if (roots.isEmpty()) {
+            System.err.println("usage: Hashes sum [--hash=NAME] [--threads=N] [--io=N] [--out=FILE] PATH...");
+            System.exit(2);
+        }
+        OutputStream os = (out == null) ? new FileOutputStream(FileDescriptor.out) : new FileOutputStream(out);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8));
+        HashSum sum = new HashSum(new Hashes(), hash, threads, io, writer);
+        try {
+            sum.run(roots);
+        } finally {
+            writer.close();
+            sum.plugin.contentPluginUnloading();
+        }
+        System.err.println(sum.summary());
+        System.exit((sum.errors.get() == 0) ? 0 : 1);
+    }
+
+
+    /* ----- HashSum: non-static members ----------------------------------- */
+
+
+    private final Hashes plugin;
+    private final Hash hash;
+    private final ForkJoinPool pool;
+    private final Semaphore io;
+    private final Writer out;       // guarded by itself
+    private final WorkItem.Store items = new WorkItem.Store();  // counting the bytes read per file
+
+    private final AtomicLong files = new AtomicLong();
+    private final AtomicLong cached = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private long nanos;
+
+    public HashSum(Hashes plugin, Hash hash, int threads, int io, Writer out) {
+        this.plugin = plugin;
+        this.hash = hash;
+        this.pool = new ForkJoinPool(threads);
+        this.io = new Semaphore(io);
+        this.out = out;
+    }
+
+    /** Hashes all regular files in (or being) {@code roots}, recursively; symbolic links aren't followed. */
+    public void run(List<Path> roots) throws IOException {
+        long t = System.nanoTime();
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (Path root: roots) {
+            tasks.add(pool.submit(new Walk(root)));
+        }
+        try {
+            for (ForkJoinTask<?> task: tasks) {
+                task.join();
+            }
+        } finally {
+            pool.shutdown();
+            nanos = System.nanoTime() - t;
+        }
+        synchronized (out) {
+            out.flush();
+        }
+    }
+
+    public String summary() {
+        double seconds = nanos / 1e9;
+        return String.format("%s: %d files (%d from :%s), %d errors, %.1f MB read in %.1f s (%.1f MB/s)",
+            hash, files.get(), cached.get(), HashCache.STREAM_NAME, errors.get(),
+            bytesRead.get() / 1e6, seconds, (seconds == 0) ? 0.0 : bytesRead.get() / 1e6 / seconds);
+    }
+
+    /* One directory (or file): forks a Walk per entry. */
+    @SuppressWarnings("serial")
+    private final class Walk extends RecursiveAction {
+        private final Path path;
+
+        Walk(Path path) {
+            this.path = path;
+        }
+
+        protected void compute() {
+            if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                List<Walk> entries = new ArrayList<>();
+                try (DirectoryStream<Path> dir = Files.newDirectoryStream(path)) {
+                    for (Path entry: dir) {
+                        entries.add(new Walk(entry));
+                    }
+                } catch (IOException | DirectoryIteratorException e) {
+                    error(path, e);
+                }
+                invokeAll(entries);
+            } else if (Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS)) {
+                hash(path);
+            }
+        }
+    }
+
+    private void hash(Path path) {
+        String fileName = path.toString();
+        try {
+            File file = path.toFile();
+            String value = plugin.getHashFromStream(hash, file);
+            if (value != null) {
+                cached.incrementAndGet();
+            } else {
+                ForkJoinPool.managedBlock(new IoPermit());
+                WorkItem item = items.newItem(fileName, plugin.getField(hash.name()), 0);
+                try {
+                    value = plugin.getHash(hash, fileName);
+                } finally {
+                    bytesRead.addAndGet(item.getBytesRead());
+                    item.cleanup();
+                    io.release();
+                }
+            }
+            files.incrementAndGet();
+            print(value, fileName);
+        } catch (IOException | RuntimeException | InterruptedException e) {
+            error(path, e);
+        }
+    }
+
+    /* Lets the pool make up for threads waiting for I/O. */
+    private final class IoPermit implements ForkJoinPool.ManagedBlocker {
+        private boolean isAcquired = false;
+
+        public boolean block() throws InterruptedException {
+            if (!isAcquired) {
+                io.acquire();
+                isAcquired = true;
+            }
+            return true;
+        }
+
+        public boolean isReleasable() {
+            return isAcquired || (isAcquired = io.tryAcquire());
+        }
+    }
+
+    /* As sha256sum does: a name containing '\\' or a newline gets them escaped, and the line a leading '\\'. */
+    private void print(String value, String fileName) throws IOException {
+        String name = fileName.replace(File.separatorChar, '/');
+        boolean isEscaped = (name.indexOf('\\') >= 0) || (name.indexOf('\n') >= 0);
+        if (isEscaped) {
+            name = name.replace("\\", "\\\\").replace("\n", "\\n");
+        }
+        String line = (isEscaped ? "\\" : "") + value + "  " + name + "\n";
+        synchronized (out) {
+            out.write(line);
+        }
+    }
+
+    private void error(Path path, Exception e) {
+        errors.incrementAndGet();
+        System.err.println("Hashes sum: " + path + ": " + e);
+    }
+
+}
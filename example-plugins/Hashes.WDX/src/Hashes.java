@@ -2,9 +2,10 @@ import java.io.IOException;
 import java.io.File;
 
 import java.nio.*;
+import java.nio.channels.AsynchronousCloseException;
 import java.nio.file.*;
 
-import java.util.regex.*;
+import java.util.concurrent.Callable;
 
 import plugins.*;
 import plugins.wdx.*;
@@ -13,41 +14,77 @@ import plugins.wdx.ContentPlugin;
 
 public class Hashes extends ContentPlugin {
 
-    private final Pattern hashContentsPattern = Pattern.compile("^([0-9a-fA-F]+)@([0-9]+)$");
+    // ADS writes, off the value path:
+    private final WriteBehind writes = new WriteBehind();
 
+    private final HashCache hashCache = new HashCache(writes);
+
+    // large files are hashed resumably:
+    private final Checkpoints checkpoints = new Checkpoints(this, writes);
+
+    // hashes being computed:
+    private final SingleFlight<String> computations = new SingleFlight<>("Hashes-", DEFAULT_BACKGROUND_THREADS, DEFAULT_BACKGROUND_QUEUE);
+
+    public Hashes() {
+        // serve repeated views from memory rather than re-reading the :Hashes ADSs
+        enableValueCache();
+    }
+
+    /** The hash stored in {@code file}'s :Hashes ADS (see {@link HashCache}), or {@code null}
+      * (always while {@link #isCacheBypassed caches are bypassed}).
+      */
     public String getHashFromStream(Hash hash, File file) throws IOException {
-        if (file.isDirectory()) {
+        if (file.isDirectory() || isCacheBypassed()) {
             return null;
         }
-        long lastModified = file.lastModified();
-        AlternateDataStream hashADS = new AlternateDataStream(file, "Hash." + hash.name());
-        if (hashADS.exists()) {
-            String hashContents = hashADS.getContents();
-            long time;
-            // TODO: make regex match thread safe
-            Matcher matcher = hashContentsPattern.matcher(hashContents);
-            if (matcher.matches()) {
-                String hashStr = matcher.group(1);
-                if (hashStr.length() == hash.bitLength() / 4) {
-                    String timeStr = matcher.group(2);
-                    time = Long.parseLong(timeStr, 10);
-                    if (lastModified <= time) {
-                        return hashStr;
-                    } else {
-                        log.warn("invalid :Hash." + hash.name() + " " + hashContents + " on \"" + file.getPath() + "\" - outdated by " + (lastModified - time) + " ms");
-                    }
-                }
-            } else {
-                log.warn("invalid :Hash." + hash.name() + " " + hashContents + " on \"" + file.getPath() + "\" - not matching /" + hashContentsPattern + "/");
+        byte[] digest = hashCache.get(file, hash);
+        return (digest == null) ? null : Hash.toHex(digest);
+    }
+
+
+    /** Returns a Tap computing {@code hash} of {@code file}, which, when finished, stores
+      * the result in the file's :Hashes ADS - unless the file is small or has changed meanwhile.
+      */
+    public Tap<String> hashTap(final Hash hash, final File file) {
+        final Hash.Processor p = hash.acquire();
+        return hashTap(hash, file, new Tap<byte[]>() {
+            public void update(ByteBuffer buf) {
+                p.update(buf);
             }
-            hashADS.deleteIfExists();
-        }
-        return null;
+
+            public byte[] finish() {
+                byte[] digest = p.getValueAsBytes();
+                p.release();
+                return digest;
+            }
+        });
     }
 
+    /* Same as hashTap(Hash, File), with the digest computed by digestTap. */
+    private Tap<String> hashTap(final Hash hash, final File file, final Tap<byte[]> digestTap) {
+        final long lastModified = file.lastModified();
+        final long size = file.length();
+        return new Tap<String>() {
+            public void update(ByteBuffer buf) {
+                digestTap.update(buf);
+            }
+
+            public String finish() throws IOException {
+                byte[] digest = digestTap.finish();
+                if (!isCacheBypassed() && file.canWrite() && (file.lastModified() == lastModified) && (size > 32 * 1024)) {
+                    hashCache.put(file, size, lastModified, hash, digest);
+                }
+                return Hash.toHex(digest);
+            }
+        };
+    }
 
-    public String getHash(Hash hash, String fileName) throws IOException {
-        File file = new File(fileName);
+    /** Returns {@code hash} of the file, from its :Hashes ADS or else computed - at
+      * most once at a time per file and Hash: concurrent callers (other TC threads,
+      * thumbnail and column views) share the computation in flight.
+      */
+    public String getHash(final Hash hash, final String fileName) throws IOException {
+        final File file = new File(fileName);
         if (file.isDirectory()) {
             return null;
         }
@@ -55,19 +92,60 @@ public class Hashes extends ContentPlugin {
         if (hashFromStream != null) {
             return hashFromStream;
         }
-        // TODO: lock file while calculating hash
-        long lastModified = file.lastModified();
-        AlternateDataStream hashADS = new AlternateDataStream(file, "Hash." + hash.name());
+        final Field<String> field = getField(hash.name());
+        return computations.get(field, fileName, new Callable<String>() {
+            public String call() throws IOException {
+                String hashFromStream = getHashFromStream(hash, file);  // stored by a flight just landed?
+                if (hashFromStream != null) {
+                    return hashFromStream;
+                }
+                if (hash.tree() != null) {
+                    return getTreeHash(hash, file);
+                }
+                if (checkpoints.isFor(file) && !isCacheBypassed()) {
+                    return getResumableHash(field, hash, fileName);
+                }
+                // other hash fields shown in TC are computed in the same read:
+                return valueFromContents(field, hashTap(hash, file), fileName);
+            }
+        });
+    }
 
+    /* Tree Hashes read the file in chunks, in parallel (see TreeHash). */
+    private String getTreeHash(Hash hash, File file) throws IOException {
+        long lastModified = file.lastModified();
         long size = file.length();
-        String result = hash.getValue(contents(fileName));
+        byte[] digest = hash.tree().compute(hash, this, file.getPath());
+        if (!isCacheBypassed() && file.canWrite() && (file.lastModified() == lastModified) && (size > 32 * 1024)) {
+            hashCache.put(file, size, lastModified, hash, digest);
+        }
+        return Hash.toHex(digest);
+    }
 
-        if (file.canWrite() && (file.lastModified() == lastModified) && (size > 32 * 1024)) {
-            long t = System.currentTimeMillis();
-            hashADS.createIfNotExists().setContents(result + "@" + t);
-            file.setLastModified(lastModified); // reset to original
+    /* Large files are hashed continuing where a stopped read left off (see Checkpoints);
+     * from the start, along with the other fields.
+     */
+    private String getResumableHash(Field<String> field, Hash hash, String fileName) throws IOException {
+        File file = new File(fileName);
+        Checkpoints.Run run = checkpoints.start(hash, file);
+        Tap<String> tap = hashTap(hash, file, run);
+        try {
+            if (run.position() == 0) {
+                return valueFromContents(field, tap, fileName);
+            }
+            for (ByteBuffer buf: contents(fileName, run.position())) {
+                tap.update(buf);
+            }
+            return tap.finish();
+        } catch (AsynchronousCloseException e) {    // also ClosedByInterruptException
+            run.stopped();
+            throw e;
+        } catch (UncheckedIOException e) {
+            if (e.getCause() instanceof AsynchronousCloseException) {
+                run.stopped();
+            }
+            throw e;
         }
-        return result;
     }
 
     private void defineHashField(final Hash h) {
@@ -80,19 +158,40 @@ public class Hashes extends ContentPlugin {
                     return false;
                 return getHashFromStream(h, file) == null;
             }
+            protected Tap<String> tap(String fileName) throws IOException {
+                File file = new File(fileName);
+                if (file.isDirectory() || (h.tree() != null) || (getHashFromStream(h, file) != null)) {
+                    return null;
+                }
+                return hashTap(h, file);
+            }
             public String getValue(String fileName) throws IOException {
                 return getHash(h, fileName);
             }
         });
     }
 
+    @Override
+    public void contentPluginUnloading() {
+        computations.shutdown();
+        writes.close();
+        super.contentPluginUnloading();
+    }
+
     protected void initFields() {
         for (Hash h: Hash.values()) {
             defineHashField(h);
         }
     }
 
+    /** {@code Hashes sum [options] PATH...}: batch hashing, see {@link HashSum};
+      * otherwise runs the tests on the files given.
+      */
     public static void main(String... args) throws IOException {
+        if ((args.length > 0) && "sum".equals(args[0])) {
+            HashSum.main(java.util.Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
         new Hashes().runTests(args);
     }
 
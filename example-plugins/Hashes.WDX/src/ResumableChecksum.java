@@ -0,0 +1,24 @@
+
+
+import java.util.zip.Checksum;
+
+
+
+/** A {@link Checksum} whose state can be saved, and restored later - by
+  * another instance, in another session - to continue where it left off
+  * (see {@link Checkpoints}).
+  *
+  * @author Matthias Kling (meisl)
+  */
+public abstract class ResumableChecksum implements Checksum {
+
+    /** The state after the bytes so far, for {@link #restoreState}. */
+    public abstract byte[] saveState();
+
+    /** Continues from {@code state}, as saved by {@link #saveState} of the same
+      * kind of Checksum; returns {@code false} (and is reset) if {@code state}
+      * isn't one.
+      */
+    public abstract boolean restoreState(byte[] state);
+
+}
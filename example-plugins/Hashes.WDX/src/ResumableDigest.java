@@ -0,0 +1,516 @@
+
+
+import java.math.BigInteger;
+
+import java.nio.ByteBuffer;
+
+import java.util.Arrays;
+
+import java.security.MessageDigest;
+
+
+
+/** MD5, SHA-1 and the SHA-2 family in pure Java, as MessageDigests whose state
+  * can be saved and restored later - by another instance, in another session -
+  * to continue where it left off (see {@link Checkpoints}). The JDK's digests
+  * keep their state private, and are faster, so these are only used where
+  * resuming matters.
+  * <p>
+  * A saved state is the chaining words, the length so far (8 bytes, big endian)
+  * and the bytes of the incomplete block.
+  *
+  * @author Matthias Kling (meisl)
+  */
+public abstract class ResumableDigest extends MessageDigest {
+
+    /** A new ResumableDigest for {@code algorithm} (as named for {@link MessageDigest#getInstance}),
+      * or {@code null} if there is none.
+      */
+    public static ResumableDigest getInstance(String algorithm) {
+        switch (algorithm.toUpperCase().replace("-", "")) {
+            case "MD5":     return new MD5();
+            case "SHA1":    return new SHA1();
+            case "SHA256":  return new SHA256();
+            case "SHA384":  return new SHA512(true);
+            case "SHA512":  return new SHA512(false);
+            default:        return null;
+        }
+    }
+
+    private final int blockSize;
+    private final int lengthSize;       // of the length field in the padding
+    private final byte[] block;
+    private int blockLength;
+    private long length;                // bytes so far
+
+    ResumableDigest(String algorithm, int blockSize, int lengthSize) {
+        super(algorithm);
+        this.blockSize = blockSize;
+        this.lengthSize = lengthSize;
+        this.block = new byte[blockSize];
+    }
+
+    /* Initial chaining words; subclasses call reset() once constructed. */
+    abstract void init();
+
+    abstract void compress(byte[] b, int off);
+
+    /* The digest from the chaining words, after the last block. */
+    abstract byte[] output();
+
+    abstract int stateSize();
+
+    abstract void putState(ByteBuffer buf);
+
+    abstract void getState(ByteBuffer buf);
+
+    /* Whether the length field in the padding is little endian (MD5 only). */
+    boolean isLittleEndian() {
+        return false;
+    }
+
+    protected void engineUpdate(byte b) {
+        block[blockLength++] = b;
+        length++;
+        if (blockLength == blockSize) {
+            compress(block, 0);
+            blockLength = 0;
+        }
+    }
+
+    protected void engineUpdate(byte[] b, int off, int len) {
+        length += len;
+        if (blockLength > 0) {
+            int n = Math.min(len, blockSize - blockLength);
+            System.arraycopy(b, off, block, blockLength, n);
+            blockLength += n;
+            off += n;
+            len -= n;
+            if (blockLength < blockSize) {
+                return;
+            }
+            compress(block, 0);
+            blockLength = 0;
+        }
+        for (; len >= blockSize; off += blockSize, len -= blockSize) {
+            compress(b, off);
+        }
+        System.arraycopy(b, off, block, 0, len);
+        blockLength = len;
+    }
+
+    protected byte[] engineDigest() {
+        long bits = length << 3;
+        engineUpdate((byte)0x80);
+        while (blockLength != blockSize - lengthSize) {
+            engineUpdate((byte)0);
+        }
+        for (int i = 0; i < lengthSize; i++) {
+            int shift = isLittleEndian() ? 8 * i : 8 * (lengthSize - 1 - i);
+            engineUpdate((shift < 64) ? (byte)(bits >>> shift) : 0);
+        }
+        byte[] result = output();
+        engineReset();
+        return result;
+    }
+
+    protected void engineReset() {
+        init();
+        blockLength = 0;
+        length = 0;
+    }
+
+    public byte[] saveState() {
+        ByteBuffer buf = ByteBuffer.allocate(stateSize() + 8 + blockLength);
+        putState(buf);
+        buf.putLong(length).put(block, 0, blockLength);
+        return buf.array();
+    }
+
+    /** Continues from {@code state}, as saved by {@link #saveState} of the same
+      * algorithm; returns {@code false} (and is reset) if {@code state} isn't one.
+      */
+    public boolean restoreState(byte[] state) {
+        engineReset();
+        if (state.length < stateSize() + 8) {
+            return false;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(state);
+        buf.position(stateSize());
+        long length = buf.getLong();
+        if ((length < 0) || (buf.remaining() != length % blockSize)) {
+            return false;
+        }
+        buf.rewind();
+        getState(buf);
+        buf.getLong();
+        this.length = length;
+        blockLength = buf.remaining();
+        buf.get(block, 0, blockLength);
+        return true;
+    }
+
+    private static int getIntBE(byte[] b, int i) {
+        return (b[i] << 24) | (b[i + 1] & 0xFF) << 16 | (b[i + 2] & 0xFF) << 8 | (b[i + 3] & 0xFF);
+    }
+
+    private static int getIntLE(byte[] b, int i) {
+        return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | (b[i + 3] << 24);
+    }
+
+    private static long getLongBE(byte[] b, int i) {
+        return ((long)getIntBE(b, i) << 32) | (getIntBE(b, i + 4) & 0xFFFFFFFFL);
+    }
+
+/* ------------------------------------------------------------------------------------------ */
+
+    /* The SHA-2 constants are the fractional parts of square and cube roots of
+     * primes; computed exactly, rather than copied from the spec, as 64-bit ones
+     * (the 32-bit ones of SHA-256 are their upper halves).
+     */
+    private static final long[] PRIMES_SQRT = new long[16];     // first 16 primes
+    private static final long[] PRIMES_CBRT = new long[80];     // first 80 primes
+
+    static {
+        int n = 0;
+        for (int p = 2; n < PRIMES_CBRT.length; p++) {
+            boolean isPrime = true;
+            for (int d = 2; d * d <= p; d++) {
+                if (p % d == 0) {
+                    isPrime = false;
+                    break;
+                }
+            }
+            if (isPrime) {
+                if (n < PRIMES_SQRT.length) {
+                    PRIMES_SQRT[n] = fractionOfRoot(p, 2);
+                }
+                PRIMES_CBRT[n++] = fractionOfRoot(p, 3);
+            }
+        }
+    }
+
+    /* The first 64 bits of the fractional part of p^(1/k). */
+    private static long fractionOfRoot(int p, int k) {
+        BigInteger x = BigInteger.valueOf(p).shiftLeft(64 * k);
+        BigInteger r = BigInteger.ONE.shiftLeft(x.bitLength() / k + 1);     // >= the root
+        BigInteger kk = BigInteger.valueOf(k);
+        while (true) {  // Newton, from above
+            BigInteger next = r.multiply(BigInteger.valueOf(k - 1)).add(x.divide(r.pow(k - 1))).divide(kk);
+            if (next.compareTo(r) >= 0) {
+                return r.longValue();
+            }
+            r = next;
+        }
+    }
+
+    static final class MD5 extends ResumableDigest {
+
+        private static final int[] K = new int[64];
+        private static final int[] S = { 7, 12, 17, 22, 5, 9, 14, 20, 4, 11, 16, 23, 6, 10, 15, 21 };
+
+        static {
+            for (int i = 0; i < 64; i++) {
+                K[i] = (int)(long)StrictMath.floor(StrictMath.abs(StrictMath.sin(i + 1)) * 4294967296.0);
+            }
+        }
+
+        private int a, b, c, d;
+        private final int[] x = new int[16];
+
+        MD5() {
+            super("MD5", 64, 8);
+            reset();
+        }
+
+        void init() {
+            a = 0x67452301;
+            b = 0xEFCDAB89;
+            c = 0x98BADCFE;
+            d = 0x10325476;
+        }
+
+        boolean isLittleEndian() {
+            return true;
+        }
+
+        void compress(byte[] block, int off) {
+            for (int i = 0; i < 16; i++) {
+                x[i] = getIntLE(block, off + 4 * i);
+            }
+            int a = this.a, b = this.b, c = this.c, d = this.d;
+            for (int i = 0; i < 64; i++) {
+                int f, g;
+                switch (i >> 4) {
+                    case 0:  f = (b & c) | (~b & d);  g = i;                break;
+                    case 1:  f = (d & b) | (~d & c);  g = (5 * i + 1) & 15; break;
+                    case 2:  f = b ^ c ^ d;           g = (3 * i + 5) & 15; break;
+                    default: f = c ^ (b | ~d);        g = (7 * i) & 15;     break;
+                }
+                int t = d;
+                d = c;
+                c = b;
+                b += Integer.rotateLeft(a + f + K[i] + x[g], S[((i >> 4) << 2) | (i & 3)]);
+                a = t;
+            }
+            this.a += a;
+            this.b += b;
+            this.c += c;
+            this.d += d;
+        }
+
+        byte[] output() {
+            ByteBuffer buf = ByteBuffer.allocate(16);
+            buf.putInt(Integer.reverseBytes(a)).putInt(Integer.reverseBytes(b))
+                .putInt(Integer.reverseBytes(c)).putInt(Integer.reverseBytes(d));
+            return buf.array();
+        }
+
+        int stateSize() {
+            return 16;
+        }
+
+        void putState(ByteBuffer buf) {
+            buf.putInt(a).putInt(b).putInt(c).putInt(d);
+        }
+
+        void getState(ByteBuffer buf) {
+            a = buf.getInt();
+            b = buf.getInt();
+            c = buf.getInt();
+            d = buf.getInt();
+        }
+    }
+
+    static final class SHA1 extends ResumableDigest {
+
+        private final int[] h = new int[5];
+        private final int[] w = new int[80];
+
+        SHA1() {
+            super("SHA-1", 64, 8);
+            reset();
+        }
+
+        void init() {
+            h[0] = 0x67452301;
+            h[1] = 0xEFCDAB89;
+            h[2] = 0x98BADCFE;
+            h[3] = 0x10325476;
+            h[4] = 0xC3D2E1F0;
+        }
+
+        void compress(byte[] block, int off) {
+            for (int i = 0; i < 16; i++) {
+                w[i] = getIntBE(block, off + 4 * i);
+            }
+            for (int i = 16; i < 80; i++) {
+                w[i] = Integer.rotateLeft(w[i - 3] ^ w[i - 8] ^ w[i - 14] ^ w[i - 16], 1);
+            }
+            int a = h[0], b = h[1], c = h[2], d = h[3], e = h[4];
+            for (int i = 0; i < 80; i++) {
+                int f;
+                if (i < 20) {
+                    f = ((b & c) | (~b & d)) + 0x5A827999;
+                } else if (i < 40) {
+                    f = (b ^ c ^ d) + 0x6ED9EBA1;
+                } else if (i < 60) {
+                    f = ((b & c) | (b & d) | (c & d)) + 0x8F1BBCDC;
+                } else {
+                    f = (b ^ c ^ d) + 0xCA62C1D6;
+                }
+                int t = Integer.rotateLeft(a, 5) + f + e + w[i];
+                e = d;
+                d = c;
+                c = Integer.rotateLeft(b, 30);
+                b = a;
+                a = t;
+            }
+            h[0] += a;
+            h[1] += b;
+            h[2] += c;
+            h[3] += d;
+            h[4] += e;
+        }
+
+        byte[] output() {
+            ByteBuffer buf = ByteBuffer.allocate(20);
+            putState(buf);
+            return buf.array();
+        }
+
+        int stateSize() {
+            return 20;
+        }
+
+        void putState(ByteBuffer buf) {
+            for (int v: h) {
+                buf.putInt(v);
+            }
+        }
+
+        void getState(ByteBuffer buf) {
+            for (int i = 0; i < h.length; i++) {
+                h[i] = buf.getInt();
+            }
+        }
+    }
+
+    static final class SHA256 extends ResumableDigest {
+
+        private static final int[] K = new int[64];
+
+        static {
+            for (int i = 0; i < 64; i++) {
+                K[i] = (int)(PRIMES_CBRT[i] >>> 32);
+            }
+        }
+
+        private final int[] h = new int[8];
+        private final int[] w = new int[64];
+
+        SHA256() {
+            super("SHA-256", 64, 8);
+            reset();
+        }
+
+        void init() {
+            for (int i = 0; i < 8; i++) {
+                h[i] = (int)(PRIMES_SQRT[i] >>> 32);
+            }
+        }
+
+        void compress(byte[] block, int off) {
+            for (int i = 0; i < 16; i++) {
+                w[i] = getIntBE(block, off + 4 * i);
+            }
+            for (int i = 16; i < 64; i++) {
+                int s0 = Integer.rotateRight(w[i - 15], 7) ^ Integer.rotateRight(w[i - 15], 18) ^ (w[i - 15] >>> 3);
+                int s1 = Integer.rotateRight(w[i - 2], 17) ^ Integer.rotateRight(w[i - 2], 19) ^ (w[i - 2] >>> 10);
+                w[i] = w[i - 16] + s0 + w[i - 7] + s1;
+            }
+            int a = h[0], b = h[1], c = h[2], d = h[3], e = h[4], f = h[5], g = h[6], hh = h[7];
+            for (int i = 0; i < 64; i++) {
+                int s1 = Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25);
+                int t1 = hh + s1 + ((e & f) ^ (~e & g)) + K[i] + w[i];
+                int s0 = Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22);
+                int t2 = s0 + ((a & b) ^ (a & c) ^ (b & c));
+                hh = g;
+                g = f;
+                f = e;
+                e = d + t1;
+                d = c;
+                c = b;
+                b = a;
+                a = t1 + t2;
+            }
+            h[0] += a;
+            h[1] += b;
+            h[2] += c;
+            h[3] += d;
+            h[4] += e;
+            h[5] += f;
+            h[6] += g;
+            h[7] += hh;
+        }
+
+        byte[] output() {
+            ByteBuffer buf = ByteBuffer.allocate(32);
+            putState(buf);
+            return buf.array();
+        }
+
+        int stateSize() {
+            return 32;
+        }
+
+        void putState(ByteBuffer buf) {
+            for (int v: h) {
+                buf.putInt(v);
+            }
+        }
+
+        void getState(ByteBuffer buf) {
+            for (int i = 0; i < h.length; i++) {
+                h[i] = buf.getInt();
+            }
+        }
+    }
+
+    /* SHA-512, or SHA-384 (other initial words, output truncated). */
+    static final class SHA512 extends ResumableDigest {
+
+        private final boolean is384;
+        private final long[] h = new long[8];
+        private final long[] w = new long[80];
+
+        SHA512(boolean is384) {
+            super(is384 ? "SHA-384" : "SHA-512", 128, 16);
+            this.is384 = is384;
+            reset();
+        }
+
+        void init() {
+            for (int i = 0; i < 8; i++) {
+                h[i] = PRIMES_SQRT[is384 ? i + 8 : i];
+            }
+        }
+
+        void compress(byte[] block, int off) {
+            for (int i = 0; i < 16; i++) {
+                w[i] = getLongBE(block, off + 8 * i);
+            }
+            for (int i = 16; i < 80; i++) {
+                long s0 = Long.rotateRight(w[i - 15], 1) ^ Long.rotateRight(w[i - 15], 8) ^ (w[i - 15] >>> 7);
+                long s1 = Long.rotateRight(w[i - 2], 19) ^ Long.rotateRight(w[i - 2], 61) ^ (w[i - 2] >>> 6);
+                w[i] = w[i - 16] + s0 + w[i - 7] + s1;
+            }
+            long a = h[0], b = h[1], c = h[2], d = h[3], e = h[4], f = h[5], g = h[6], hh = h[7];
+            for (int i = 0; i < 80; i++) {
+                long s1 = Long.rotateRight(e, 14) ^ Long.rotateRight(e, 18) ^ Long.rotateRight(e, 41);
+                long t1 = hh + s1 + ((e & f) ^ (~e & g)) + PRIMES_CBRT[i] + w[i];
+                long s0 = Long.rotateRight(a, 28) ^ Long.rotateRight(a, 34) ^ Long.rotateRight(a, 39);
+                long t2 = s0 + ((a & b) ^ (a & c) ^ (b & c));
+                hh = g;
+                g = f;
+                f = e;
+                e = d + t1;
+                d = c;
+                c = b;
+                b = a;
+                a = t1 + t2;
+            }
+            h[0] += a;
+            h[1] += b;
+            h[2] += c;
+            h[3] += d;
+            h[4] += e;
+            h[5] += f;
+            h[6] += g;
+            h[7] += hh;
+        }
+
+        byte[] output() {
+            ByteBuffer buf = ByteBuffer.allocate(64);
+            putState(buf);
+            return is384 ? Arrays.copyOf(buf.array(), 48) : buf.array();
+        }
+
+        int stateSize() {
+            return 64;
+        }
+
+        void putState(ByteBuffer buf) {
+            for (long v: h) {
+                buf.putLong(v);
+            }
+        }
+
+        void getState(ByteBuffer buf) {
+            for (int i = 0; i < h.length; i++) {
+                h[i] = buf.getLong();
+            }
+        }
+    }
+
+}
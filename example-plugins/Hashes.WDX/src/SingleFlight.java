@@ -0,0 +1,261 @@
+
+
+import java.io.IOException;
+
+import java.nio.channels.ClosedByInterruptException;
+
+import java.util.concurrent.*;
+
+import plugins.wdx.Field;
+import plugins.wdx.WorkItem;
+
+
+
+/** De-duplicates concurrent computations of a field's value per file: the
+  * first caller starts the computation, later callers for the same field and
+  * file subscribe to it rather than computing again, and all of them get the
+  * same result (or failure).
+  * <p>
+  * The computation runs on a thread of its own, not on any caller's, so a
+  * caller being stopped (interrupted, as by {@code contentStopGetValue}) only
+  * unsubscribes it. It runs under a {@link WorkItem} of its own, so the
+  * {@link plugins.wdx.ContentPlugin#contents Contents} it reads are attached
+  * to that; when the last subscriber is gone, the item is
+  * {@link WorkItem#requestStop stop}ped, which stops those reads. The bytes
+  * read count toward the WorkItem of the caller that started the computation
+  * (if any), as if it had read them itself.
+  * <p>
+  * A computation stays in flight until its thread is done with it, stopped or
+  * not: a caller arriving after it was abandoned waits for that, then starts
+  * a new one - there's never more than one at a time per field and file.
+  * <p>
+  * There are at most {@code threads} such threads, with up to {@code queue}
+  * computations waiting for one (a waiting computation that loses its last
+  * subscriber is dropped without running). When they are all taken, the
+  * caller runs the computation on its own thread instead, under its own
+  * WorkItem - still in flight for others to subscribe to. Should that caller
+  * be stopped, the other subscribers start over rather than fail with it.
+  *
+  * @author Matthias Kling (meisl)
+  */
+public class SingleFlight<V> {
+
+    private final ConcurrentHashMap<String, Flight> flights = new ConcurrentHashMap<>();
+
+    // the computations' own WorkItems:
+    private final WorkItem.Store items = new WorkItem.Store();
+
+    private final ThreadPoolExecutor executor;
+
+    public SingleFlight(final String name, int threads, int queue) {
+        executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(queue),
+            new ThreadFactory() {
+                private int n = 0;
+                public synchronized Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, name + n++);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /** Returns the result of {@code computation} of {@code field}'s value for
+      * {@code fileName} - computed by this call, or by one already in flight
+      * for the same field and file.
+      * If the calling thread is interrupted while waiting, it unsubscribes
+      * and a {@link ClosedByInterruptException} is thrown.
+      */
+    public V get(Field<?> field, String fileName, Callable<V> computation) throws IOException {
+        String key = field.name + "|" + fileName;
+        while (true) {
+            Flight flight = flights.get(key);
+            if (flight == null) {
+                Flight f = new Flight(key, field, fileName, computation);
+                flight = flights.putIfAbsent(key, f);
+                if (flight == null) {
+                    f.subscribe();
+                    try {
+                        executor.execute(f);
+                    } catch (RejectedExecutionException e) {
+                        if (executor.isShutdown()) {
+                            f.cancel(false);
+                        } else {            // all threads busy and queue full
+                            f.isCallerRun = true;
+                            f.run();
+                        }
+                    }
+                    return f.await();
+                }
+            }
+            if (flight.subscribe()) {
+                try {
+                    return flight.await();
+                } catch (StoppedByStarter e) {
+                    // its starter ran it and was stopped - not us, so start over
+                }
+            }
+            flight.awaitExit();     // abandoned just now, start over when its thread is done
+        }
+    }
+
+    /** Number of computations in flight. */
+    public int size() {
+        return flights.size();
+    }
+
+    /** The computations' WorkItems, along with stop latencies. */
+    public WorkItem.Store getWorkItems() {
+        return items;
+    }
+
+    /** Stops all computations in flight. */
+    public void shutdown() {
+        executor.shutdown();
+        for (Flight f: flights.values()) {
+            f.abandon();
+        }
+    }
+
+    /* Thrown to subscribers of a computation its starter ran on its own thread and was stopped. */
+    private static final class StoppedByStarter extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        StoppedByStarter() {
+            super("computation stopped by the caller running it");
+        }
+    }
+
+    private final class Flight extends FutureTask<V> {
+        private final String key;
+        private final Field<?> field;
+        private final String fileName;
+        private final WorkItem starter = WorkItem.current();
+        private final Thread starterThread = Thread.currentThread();
+        private int subscribers = 0;            // guarded by this
+        private boolean isAbandoned = false;    // guarded by this
+        private WorkItem workItem = null;       // guarded by this; while running
+        private final CountDownLatch exited = new CountDownLatch(1);
+        private boolean isCallerRun = false;    // set before run() on the starter's thread
+        private boolean isStoppedByStarter = false; // published by the outcome
+
+        Flight(String key, Field<?> field, String fileName, Callable<V> computation) {
+            super(computation);
+            this.key = key;
+            this.field = field;
+            this.fileName = fileName;
+        }
+
+        @Override
+        public void run() {
+            if (isCallerRun) {          // reads go to the starter's own WorkItem, if any
+                try {
+                    super.run();
+                } finally {
+                    flights.remove(key, this);
+                    exited.countDown();
+                }
+                return;
+            }
+            WorkItem it = items.newItem(fileName, field, 0);
+            if (starter != null) {
+                starter.include(it);
+            }
+            synchronized (this) {
+                workItem = it;
+                if (isAbandoned) {
+                    it.requestStop();
+                }
+            }
+            try {
+                super.run();
+            } finally {
+                synchronized (this) {
+                    workItem = null;    // no more stops, this thread may go on to another flight
+                }
+                it.cleanup();           // clears the interrupt from a stop
+                flights.remove(key, this);
+                exited.countDown();
+            }
+        }
+
+        @Override
+        protected void setException(Throwable t) {
+            if (isCallerRun && (Thread.currentThread().isInterrupted()
+                                || (t instanceof InterruptedException)
+                                || (t instanceof ClosedByInterruptException)
+                                || ((starter != null) && starter.isStopRequested()))) {
+                isStoppedByStarter = true;
+            }
+            super.setException(t);
+        }
+
+        /* Only if never run (shut down, or dropped from the queue); else the entry goes when run() returns. */
+        protected void done() {
+            if (isCancelled()) {
+                flights.remove(key, this);
+                exited.countDown();
+            }
+        }
+
+        synchronized boolean subscribe() {
+            if (isAbandoned) {
+                return false;
+            }
+            subscribers++;
+            return true;
+        }
+
+        private synchronized void unsubscribe() {
+            if ((--subscribers == 0) && !isDone()) {
+                abandon();
+            }
+        }
+
+        synchronized void abandon() {
+            isAbandoned = true;
+            if (workItem != null) {
+                workItem.requestStop();
+            } else if (executor.remove(this)) {     // still waiting for a thread
+                cancel(false);
+            }
+        }
+
+        V await() throws IOException {
+            try {
+                return get();
+            } catch (InterruptedException e) {
+                throw new ClosedByInterruptException();
+            } catch (ExecutionException e) {
+                if (isStoppedByStarter && (Thread.currentThread() != starterThread)) {
+                    throw new StoppedByStarter();
+                }
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException)cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException)cause;
+                } else if (cause instanceof Error) {
+                    throw (Error)cause;
+                }
+                throw new RuntimeException(cause);
+            } catch (CancellationException e) {
+                // can only happen on shutdown (or dropped from the queue once all have left)
+                throw new ClosedByInterruptException();
+            } finally {
+                unsubscribe();
+            }
+        }
+
+        /* Waits until the computation's thread is done with it, whatever the outcome. */
+        void awaitExit() throws IOException {
+            try {
+                exited.await();
+            } catch (InterruptedException e) {
+                throw new ClosedByInterruptException();
+            }
+        }
+    }
+
+}
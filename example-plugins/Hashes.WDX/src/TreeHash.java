@@ -0,0 +1,269 @@
+
+
+import java.io.*;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import plugins.UncheckedIOException;
+import plugins.wdx.ContentPlugin;
+import plugins.wdx.Contents;
+import plugins.wdx.WorkItem;
+
+
+
+/** Tree (Merkle) hashing: the file is split into chunks of {@link #CHUNK_SIZE}
+  * bytes, each chunk is hashed as a leaf {@code H(0x00 || chunk)}, and the leaves
+  * are combined pairwise {@code H(0x01 || left || right)} up to the root, splitting
+  * n leaves at the largest power of two below n (as in RFC 6962). An empty file's
+  * root is {@code H()}.
+  * <p>
+  * Unlike a linear digest, the leaves can be computed in parallel: {@link #compute}
+  * reads and hashes the chunks on a ForkJoin pool. Leaf digests aren't kept - the
+  * root is, by {@link HashCache}, and a changed file is hashed all over again: only
+  * reading a chunk tells whether it's unchanged (a stored checksum can't, as
+  * collisions can be made on purpose).
+  * <p>
+  * The same root is computed sequentially by {@link #newProcessor}, so tree Hashes
+  * also work as ordinary {@link Hash.Processor}s (and Taps).
+  *
+  * @author Matthias Kling (meisl)
+  */
+public final class TreeHash {
+
+    /** Part of the definition of each tree Hash (the root depends on it), hence fixed. */
+    public static final int CHUNK_SIZE = 1 << 22;   // 4 MiB
+
+    /** Number of threads hashing chunks; may be overridden by system property
+      * {@code plugins.wdx.hashes.tree.threads}.
+      */
+    public static final int DEFAULT_THREADS = Integer.getInteger("plugins.wdx.hashes.tree.threads",
+        Runtime.getRuntime().availableProcessors());
+
+    private static final Log log = LogFactory.getLog(TreeHash.class);
+
+    private static final byte LEAF = 0x00;
+    private static final byte NODE = 0x01;
+
+    private static final ForkJoinPool pool = new ForkJoinPool(DEFAULT_THREADS);
+
+    private final String algorithmName;
+
+    TreeHash(String algorithmName) {
+        this.algorithmName = algorithmName;
+        newDigest();    // fail early
+    }
+
+    MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(algorithmName);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Root of {@code leaves[from..to)}; {@code H()} if empty. */
+    private byte[] root(byte[][] leaves, int from, int to, MessageDigest md) {
+        int n = to - from;
+        if (n == 0) {
+            return md.digest();
+        }
+        if (n == 1) {
+            return leaves[from];
+        }
+        int k = Integer.highestOneBit(n - 1);
+        byte[] left = root(leaves, from, from + k, md);
+        byte[] right = root(leaves, from + k, to, md);
+        md.update(NODE);
+        md.update(left);
+        md.update(right);
+        return md.digest();
+    }
+
+    byte[] root(byte[][] leaves) {
+        return root(leaves, 0, leaves.length, newDigest());
+    }
+
+    /** A sequential Processor computing the same root as {@link #compute}. */
+    Hash.Processor newProcessor(Hash hash) {
+        return new Hash.Processor(hash) {
+            private final MessageDigest md = newDigest();
+            private final List<byte[]> leaves = new ArrayList<>();
+            private int inChunk = 0;
+
+            public Hash.Processor update(ByteBuffer buf) {
+                while (buf.hasRemaining()) {
+                    if (inChunk == 0) {
+                        md.update(LEAF);
+                    }
+                    int n = Math.min(buf.remaining(), CHUNK_SIZE - inChunk);
+                    ByteBuffer part = buf.duplicate();
+                    part.limit(part.position() + n);
+                    md.update(part);
+                    buf.position(buf.position() + n);
+                    inChunk += n;
+                    if (inChunk == CHUNK_SIZE) {
+                        leaves.add(md.digest());
+                        inChunk = 0;
+                    }
+                }
+                return this;
+            }
+
+            public Hash.Processor reset() {
+                md.reset();
+                leaves.clear();
+                inChunk = 0;
+                return this;
+            }
+
+            public byte[] getValueAsBytes() {
+                if (inChunk > 0) {
+                    leaves.add(md.digest());
+                    inChunk = 0;
+                }
+                return root(leaves.toArray(new byte[leaves.size()][]));
+            }
+        };
+    }
+
+    /** Computes {@code hash}'s root of the file, hashing its chunks in parallel:
+      * the file is split into about {@link #DEFAULT_THREADS} runs of chunks, each read
+      * through {@code plugin}'s {@link ContentPlugin#contents(String, long) contents}
+      * from the run's start and stopped at its end (so the reads count in the plugin's
+      * stats). These are attached to the calling thread's {@link WorkItem}, if any, so
+      * stopping that stops the reads; interrupting the calling thread cancels the rest.
+      */
+    public byte[] compute(Hash hash, ContentPlugin plugin, String fileName) throws IOException {
+        long size = new File(fileName).length();
+        int n = (int)((size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        int span = Math.max(1, (n + DEFAULT_THREADS - 1) / DEFAULT_THREADS);
+        byte[][] leaves = new byte[n][];
+        AtomicBoolean isCancelled = new AtomicBoolean(false);
+        long t = System.nanoTime();
+        Future<Void> f = pool.submit(new Chunks(plugin, fileName, size, WorkItem.current(), leaves, span, 0, n, isCancelled));
+        try {
+            f.get();
+        } catch (InterruptedException e) {
+            isCancelled.set(true);
+            f.cancel(false);
+            throw new ClosedByInterruptException();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if ((cause instanceof UncheckedIOException) && (cause.getCause() instanceof IOException)) {
+                throw (IOException)cause.getCause();
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            throw (Error)cause;
+        }
+        if (log.isDebugEnabled()) {
+            log.debug(hash + " of \"" + fileName + "\": " + n + " chunks in "
+                + String.format("%.1f ms", (System.nanoTime() - t) / 1e6));
+        }
+        return root(leaves);
+    }
+
+    /* Reads and hashes chunks [from, to), splitting the range in halves down to at most span chunks. */
+    @SuppressWarnings("serial")
+    private final class Chunks extends RecursiveTask<Void> {
+        private final ContentPlugin plugin;
+        private final String fileName;
+        private final long size;
+        private final WorkItem workItem;
+        private final byte[][] leaves;
+        private final int span;
+        private final int from;
+        private final int to;
+        private final AtomicBoolean isCancelled;
+
+        Chunks(ContentPlugin plugin, String fileName, long size, WorkItem workItem,
+               byte[][] leaves, int span, int from, int to, AtomicBoolean isCancelled)
+        {
+            this.plugin = plugin;
+            this.fileName = fileName;
+            this.size = size;
+            this.workItem = workItem;
+            this.leaves = leaves;
+            this.span = span;
+            this.from = from;
+            this.to = to;
+            this.isCancelled = isCancelled;
+        }
+
+        private Chunks part(int from, int to) {
+            return new Chunks(plugin, fileName, size, workItem, leaves, span, from, to, isCancelled);
+        }
+
+        protected Void compute() {
+            if (to - from > span) {
+                int mid = (from + to) >>> 1;
+                invokeAll(part(from, mid), part(mid, to));
+                return null;
+            }
+            if ((from == to) || isCancelled.get()) {
+                return null;
+            }
+            long position = (long)from * CHUNK_SIZE;
+            long end = Math.min((long)to * CHUNK_SIZE, size);
+            Contents contents;
+            try {
+                contents = plugin.contents(fileName, position);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if ((workItem != null) && (WorkItem.current() != workItem)) {
+                workItem.attach(contents);
+            }
+            MessageDigest md = newDigest();
+            int i = from;
+            int inChunk = 0;
+            Iterator<ByteBuffer> it = contents.iterator();
+            try {
+                while ((position < end) && !isCancelled.get() && it.hasNext()) {
+                    ByteBuffer buf = it.next();
+                    while (buf.hasRemaining() && (position < end)) {
+                        if (inChunk == 0) {
+                            md.update(LEAF);
+                        }
+                        int n = (int)Math.min(Math.min(buf.remaining(), CHUNK_SIZE - inChunk), end - position);
+                        ByteBuffer part = buf.duplicate();
+                        part.limit(part.position() + n);
+                        md.update(part);
+                        buf.position(buf.position() + n);
+                        position += n;
+                        inChunk += n;
+                        if ((inChunk == CHUNK_SIZE) || (position == end)) {
+                            leaves[i++] = md.digest();
+                            inChunk = 0;
+                        }
+                    }
+                }
+            } finally {
+                contents.stop();            // the rest is other runs'; no effect at the end of the file
+                if (contents.isStopped()) {
+                    try {
+                        it.hasNext();       // hands back the buffer still held
+                    } catch (UncheckedIOException e) {
+                        // stopped, as expected
+                    }
+                }
+            }
+            if ((position < end) && !isCancelled.get()) {
+                throw new UncheckedIOException(new EOFException("file shrunk while hashing, at " + position));
+            }
+            return null;
+        }
+    }
+
+}
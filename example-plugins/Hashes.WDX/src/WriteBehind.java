@@ -0,0 +1,281 @@
+
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.*;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+
+/** Persists ADS writes in the background, so the value path doesn't pay for
+  * a small synchronous write plus a last-modified update on every cache miss.
+  * <p>
+  * Writes are batched per directory: the first write queued for a directory
+  * is due {@link #DEFAULT_DELAY_MILLIS} later, and all writes queued for that
+  * directory by then go out together. A later write for the same file and
+  * stream replaces a pending one.
+  * <p>
+  * A write only happens if the file's size and last-modified time are still
+  * those its data was computed for, and the file's last-modified time is reset
+  * afterwards - as before, when writing on the value path. A write that fails
+  * (eg. the file is in use) is retried, with doubling delays, up to
+  * {@link #MAX_ATTEMPTS} times.
+  * <p>
+  * Pending writes are flushed by {@link #close} (call it from {@code contentPluginUnloading})
+  * and by a shutdown hook.
+  *
+  * @author Matthias Kling (meisl)
+  */
+public class WriteBehind {
+
+    /** How long writes for a directory are collected before being written; may be
+      * overridden by system property {@code plugins.wdx.hashes.writeBehind.delay}.
+      */
+    public static final long DEFAULT_DELAY_MILLIS = Long.getLong("plugins.wdx.hashes.writeBehind.delay", 1000);
+
+    public static final int MAX_ATTEMPTS = 5;
+
+    private static final Log log = LogFactory.getLog(WriteBehind.class);
+
+    /** One write to an ADS of a file, valid for the file at {@link #size} and {@link #lastModified}. */
+    public static abstract class Write {
+        final File file;
+        final String streamName;
+        final long size;
+        final long lastModified;
+        int attempts = 0;
+
+        protected Write(File file, String streamName, long size, long lastModified) {
+            this.file = file;
+            this.streamName = streamName;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        /** Does the actual write (the file's last-modified time is reset afterwards). */
+        protected abstract void write() throws IOException;
+
+        /** Called instead of {@link #write} if the write is dropped. */
+        protected void discard() {
+        }
+
+        public String toString() {
+            return "\"" + file.getPath() + ":" + streamName + "\"";
+        }
+    }
+
+    private static final class Batch {
+        final long dueAt;
+        final Map<String, Write> writes = new LinkedHashMap<>();
+
+        Batch(long dueAt) {
+            this.dueAt = dueAt;
+        }
+    }
+
+    private final long delayMillis;
+
+    private final Map<String, Batch> batches = new LinkedHashMap<>();     // by directory; guarded by itself
+    private boolean isWriting = false;                                      // guarded by batches
+    private boolean isClosed = false;                                       // guarded by batches
+    private Thread writer = null;                                           // guarded by batches
+
+    private long written = 0;                                               // guarded by batches
+    private long dropped = 0;                                               // guarded by batches
+
+    private final Thread shutdownHook = new Thread("WriteBehind-flush") {
+        public void run() {
+            flush();
+        }
+    };
+
+    public WriteBehind(long delayMillis) {
+        this.delayMillis = delayMillis;
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    public WriteBehind() {
+        this(DEFAULT_DELAY_MILLIS);
+    }
+
+    /** Queues {@code w}; written right away if closed already. */
+    public void enqueue(Write w) {
+        synchronized (batches) {
+            if (!isClosed) {
+                add(w, System.currentTimeMillis() + delayMillis);
+                if (writer == null) {
+                    writer = new Thread("WriteBehind") {
+                        public void run() {
+                            writeLoop();
+                        }
+                    };
+                    writer.setDaemon(true);
+                    writer.start();
+                }
+                batches.notifyAll();
+                return;
+            }
+        }
+        write(Collections.singletonList(w), false);
+    }
+
+    /* guarded by batches */
+    private void add(Write w, long dueAt) {
+        String dir = String.valueOf(w.file.getAbsoluteFile().getParent());
+        Batch batch = batches.get(dir);
+        if (batch == null) {
+            batch = new Batch(dueAt);
+            batches.put(dir, batch);
+        }
+        batch.writes.put(w.file.getPath() + ":" + w.streamName, w);
+    }
+
+    private void writeLoop() {
+        while (true) {
+            Collection<Write> writes;
+            synchronized (batches) {
+                try {
+                    while (true) {
+                        if (isClosed) {
+                            writer = null;
+                            batches.notifyAll();
+                            return;
+                        }
+                        long wait = Long.MAX_VALUE;
+                        long now = System.currentTimeMillis();
+                        Iterator<Batch> it = batches.values().iterator();
+                        writes = null;
+                        while (it.hasNext()) {
+                            Batch batch = it.next();
+                            if (batch.dueAt <= now) {
+                                it.remove();
+                                writes = batch.writes.values();
+                                break;
+                            }
+                            wait = Math.min(wait, batch.dueAt - now);
+                        }
+                        if (writes != null) {
+                            break;
+                        }
+                        batches.wait((wait == Long.MAX_VALUE) ? 0 : wait);
+                    }
+                } catch (InterruptedException e) {
+                    writer = null;
+                    return;
+                }
+                isWriting = true;
+            }
+            try {
+                write(writes, true);
+            } finally {
+                synchronized (batches) {
+                    isWriting = false;
+                    batches.notifyAll();
+                }
+            }
+        }
+    }
+
+    /* Writes each of writes still valid for its file; failed ones are queued again if isRetrying. */
+    private void write(Collection<Write> writes, boolean isRetrying) {
+        for (Write w: writes) {
+            File file = w.file;
+            if (!file.canWrite() || (file.length() != w.size) || (file.lastModified() != w.lastModified)) {
+                if (log.isDebugEnabled()) {
+                    log.debug("not writing " + w + ": file changed meanwhile");
+                }
+                w.discard();
+                synchronized (batches) {
+                    dropped++;
+                }
+                continue;
+            }
+            try {
+                w.write();
+                file.setLastModified(w.lastModified); // reset to original
+                synchronized (batches) {
+                    written++;
+                }
+            } catch (IOException e) {
+                w.attempts++;
+                boolean isRetried = false;
+                if (isRetrying && (w.attempts < MAX_ATTEMPTS)) {
+                    synchronized (batches) {
+                        if (!isClosed) {
+                            add(w, System.currentTimeMillis() + (delayMillis << w.attempts));
+                            isRetried = true;
+                        }
+                    }
+                }
+                if (isRetried) {
+                    log.info("writing " + w + " failed (attempt " + w.attempts + "), will retry: " + e);
+                } else {
+                    log.warn("writing " + w + " failed (attempt " + w.attempts + "), giving up: " + e);
+                    w.discard();
+                    synchronized (batches) {
+                        dropped++;
+                    }
+                }
+            }
+        }
+    }
+
+    /** Writes everything pending now, on the calling thread, and waits for the
+      * batch being written in the background (if any).
+      */
+    public void flush() {
+        List<Write> writes = new ArrayList<>();
+        synchronized (batches) {
+            for (Batch batch: batches.values()) {
+                writes.addAll(batch.writes.values());
+            }
+            batches.clear();
+        }
+        write(writes, false);
+        synchronized (batches) {
+            try {
+                while (isWriting) {
+                    batches.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /** Flushes and stops the background writer; later writes are done right away. */
+    public void close() {
+        synchronized (batches) {
+            isClosed = true;
+            batches.notifyAll();
+        }
+        flush();
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException e) {
+            // shutting down already
+        }
+    }
+
+    /** Number of writes pending. */
+    public int size() {
+        synchronized (batches) {
+            int result = 0;
+            for (Batch batch: batches.values()) {
+                result += batch.writes.size();
+            }
+            return result;
+        }
+    }
+
+    public String toString() {
+        synchronized (batches) {
+            return "WriteBehind " + size() + " pending in " + batches.size() + " directories, "
+                + written + " written, " + dropped + " dropped";
+        }
+    }
+
+}
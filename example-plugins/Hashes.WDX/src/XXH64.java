@@ -0,0 +1,199 @@
+
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+
+
+
+/** xxHash64 (seed 0), streaming, in pure Java; see
+  * <a href="https://github.com/Cyan4973/xxHash/blob/dev/doc/xxhash_spec.md">the spec</a>.
+  * Not cryptographic, but several GB/s - for dedupe and change detection.
+  * <p>
+  * {@link #update(ByteBuffer)} reads heap and direct buffers in place (absolute
+  * reads, the buffer's byte order doesn't matter) and allocates nothing.
+  * <p>
+  * The state is the four accumulators, the length so far and the bytes of an
+  * incomplete stripe, so it can be saved and resumed as it is.
+  *
+  * @author Matthias Kling (meisl)
+  */
+public final class XXH64 extends ResumableChecksum {
+
+    private static final long P1 = 0x9E3779B185EBCA87L;
+    private static final long P2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long P3 = 0x165667B19E3779F9L;
+    private static final long P4 = 0x85EBCA77C2B2AE63L;
+    private static final long P5 = 0x27D4EB2F165667C5L;
+
+    private static final int STRIPE = 32;
+
+    private long v1, v2, v3, v4;
+    private long total;
+    private final byte[] pending = new byte[STRIPE];    // the bytes of an incomplete stripe
+    private int pendingLength;
+
+    public XXH64() {
+        reset();
+    }
+
+    public void reset() {
+        v1 = P1 + P2;
+        v2 = P2;
+        v3 = 0;
+        v4 = -P1;
+        total = 0;
+        pendingLength = 0;
+    }
+
+    private static long round(long acc, long input) {
+        return Long.rotateLeft(acc + input * P2, 31) * P1;
+    }
+
+    private static long mergeRound(long acc, long v) {
+        return (acc ^ round(0, v)) * P1 + P4;
+    }
+
+    private static long getLongLE(byte[] b, int i) {
+        return (b[i] & 0xFFL) | (b[i + 1] & 0xFFL) << 8 | (b[i + 2] & 0xFFL) << 16 | (b[i + 3] & 0xFFL) << 24
+            | (b[i + 4] & 0xFFL) << 32 | (b[i + 5] & 0xFFL) << 40 | (b[i + 6] & 0xFFL) << 48 | (b[i + 7] & 0xFFL) << 56;
+    }
+
+    private static long getIntLE(byte[] b, int i) {
+        return (b[i] & 0xFFL) | (b[i + 1] & 0xFFL) << 8 | (b[i + 2] & 0xFFL) << 16 | (b[i + 3] & 0xFFL) << 24;
+    }
+
+    private void stripe(long a, long b, long c, long d) {
+        v1 = round(v1, a);
+        v2 = round(v2, b);
+        v3 = round(v3, c);
+        v4 = round(v4, d);
+    }
+
+    public void update(int b) {
+        pending[pendingLength++] = (byte)b;
+        total++;
+        if (pendingLength == STRIPE) {
+            stripe(getLongLE(pending, 0), getLongLE(pending, 8), getLongLE(pending, 16), getLongLE(pending, 24));
+            pendingLength = 0;
+        }
+    }
+
+    public void update(byte[] b, int off, int len) {
+        total += len;
+        if (pendingLength > 0) {
+            int n = Math.min(len, STRIPE - pendingLength);
+            System.arraycopy(b, off, pending, pendingLength, n);
+            pendingLength += n;
+            off += n;
+            len -= n;
+            if (pendingLength < STRIPE) {
+                return;
+            }
+            stripe(getLongLE(pending, 0), getLongLE(pending, 8), getLongLE(pending, 16), getLongLE(pending, 24));
+            pendingLength = 0;
+        }
+        int end = off + len - STRIPE;
+        for (; off <= end; off += STRIPE) {
+            stripe(getLongLE(b, off), getLongLE(b, off + 8), getLongLE(b, off + 16), getLongLE(b, off + 24));
+        }
+        len = end + STRIPE - off;
+        System.arraycopy(b, off, pending, 0, len);
+        pendingLength = len;
+    }
+
+    /** Consumes the remaining bytes of {@code buf}, without copying (but the last &lt; 32). */
+    public void update(ByteBuffer buf) {
+        int pos = buf.position();
+        int limit = buf.limit();
+        total += limit - pos;
+        while ((pendingLength > 0) && (pos < limit)) {
+            pending[pendingLength++] = buf.get(pos++);
+            if (pendingLength == STRIPE) {
+                stripe(getLongLE(pending, 0), getLongLE(pending, 8), getLongLE(pending, 16), getLongLE(pending, 24));
+                pendingLength = 0;
+            }
+        }
+        boolean isSwapped = (buf.order() == ByteOrder.BIG_ENDIAN);
+        for (; pos <= limit - STRIPE; pos += STRIPE) {
+            long a = buf.getLong(pos);
+            long b = buf.getLong(pos + 8);
+            long c = buf.getLong(pos + 16);
+            long d = buf.getLong(pos + 24);
+            if (isSwapped) {
+                a = Long.reverseBytes(a);
+                b = Long.reverseBytes(b);
+                c = Long.reverseBytes(c);
+                d = Long.reverseBytes(d);
+            }
+            stripe(a, b, c, d);
+        }
+        while (pos < limit) {
+            pending[pendingLength++] = buf.get(pos++);
+        }
+        buf.position(limit);
+    }
+
+    /** v1..v4, total (8 each, big endian), then the pending bytes. */
+    public byte[] saveState() {
+        ByteBuffer buf = ByteBuffer.allocate(40 + pendingLength);
+        buf.putLong(v1).putLong(v2).putLong(v3).putLong(v4).putLong(total).put(pending, 0, pendingLength);
+        return buf.array();
+    }
+
+    public boolean restoreState(byte[] state) {
+        reset();
+        ByteBuffer buf = ByteBuffer.wrap(state);
+        if (state.length < 40) {
+            return false;
+        }
+        long v1 = buf.getLong();
+        long v2 = buf.getLong();
+        long v3 = buf.getLong();
+        long v4 = buf.getLong();
+        long total = buf.getLong();
+        if ((total < 0) || (buf.remaining() != total % STRIPE)) {
+            return false;
+        }
+        this.v1 = v1;
+        this.v2 = v2;
+        this.v3 = v3;
+        this.v4 = v4;
+        this.total = total;
+        pendingLength = buf.remaining();
+        buf.get(pending, 0, pendingLength);
+        return true;
+    }
+
+    public long getValue() {
+        long h;
+        if (total >= STRIPE) {
+            h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            h = mergeRound(h, v1);
+            h = mergeRound(h, v2);
+            h = mergeRound(h, v3);
+            h = mergeRound(h, v4);
+        } else {
+            h = P5;
+        }
+        h += total;
+        int i = 0;
+        for (; i + 8 <= pendingLength; i += 8) {
+            h = Long.rotateLeft(h ^ round(0, getLongLE(pending, i)), 27) * P1 + P4;
+        }
+        if (i + 4 <= pendingLength) {
+            h = Long.rotateLeft(h ^ (getIntLE(pending, i) * P1), 23) * P2 + P3;
+            i += 4;
+        }
+        for (; i < pendingLength; i++) {
+            h = Long.rotateLeft(h ^ ((pending[i] & 0xFFL) * P5), 11) * P1;
+        }
+        h ^= h >>> 33;
+        h *= P2;
+        h ^= h >>> 29;
+        h *= P3;
+        h ^= h >>> 32;
+        return h;
+    }
+
+}
@@ -2,6 +2,7 @@ import java.util.*;
 import java.io.*;
 
 import plugins.AlternateDataStream;
+import plugins.wdx.TestRunner;
 
 
 public class Main {
@@ -10,7 +11,7 @@ public class Main {
         NtfsStreamsJ plugin = new NtfsStreamsJ(NtfsStreamsJ.Helper.STREAMS);
         plugin.listFields();
         plugin.runTests(args);
-        for (String arg: args) {
+        for (String arg: TestRunner.fileNames(args)) {
             System.out.println();
             System.out.println("Main(..): " + arg);
             List<AlternateDataStream> streams = plugin.getStreams(arg);
@@ -161,7 +161,41 @@ public class AlternateDataStream {
         out.flush();
         out.close();
     }
-    
+
+    /** The raw contents, in one read; {@code null} if the stream doesn't exist. */
+    public byte[] getBytes() throws IOException {
+        InputStream in;
+        try {
+            in = new FileInputStream(this.getStreamFile());
+        } catch (FileNotFoundException e) {
+            this.length = -1;
+            return null;
+        }
+        try {
+            ByteArrayOutputStream result = new ByteArrayOutputStream(Math.max(this.length(), 64));
+            byte[] buffer = new byte[1024];
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                result.write(buffer, 0, bytesRead);
+            }
+            this.length = result.size();
+            return result.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /** Replaces the contents by {@code bytes}, creating the stream if necessary. */
+    public void setBytes(byte[] bytes) throws IOException {
+        OutputStream out = new FileOutputStream(this.getStreamFile());
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+        this.length = bytes.length;
+    }
+
     public String toString() {
         return "\t" + this.length() + "\t\"" + ":" + this.getRawName() + "\"";
     }
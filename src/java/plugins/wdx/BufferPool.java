@@ -0,0 +1,169 @@
+package plugins.wdx;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import java.nio.*;
+
+
+/** A thread-safe pool of equally sized ByteBuffers, direct ones by default.
+  * <p>
+  * {@link #acquire} hands out a pooled buffer if there is one and allocates
+  * a new one otherwise; {@link #release} puts it back unless there are
+  * already {@code maxPooled} buffers waiting. So once the pool has warmed up,
+  * buffers are only allocated if more of them are in use at the same time
+  * than ever before.
+  * <p>
+  * If direct buffers are turned off, or allocating one fails (because
+  * -XX:MaxDirectMemorySize is exhausted), heap buffers are used instead - after
+  * a failure, for good (until {@link #clear(boolean)} turns them on again).
+  *
+  * @author Matthias Kling (meisl)
+  */
+public class BufferPool {
+
+    private static final Log myLog = LogFactory.getLog(BufferPool.class);
+
+    /** Default for the number of idle buffers kept in a pool;
+      * may be overridden by system property {@code plugins.wdx.bufferPool.maxPooled}.
+      */
+    public static final int DEFAULT_MAX_POOLED = Integer.getInteger("plugins.wdx.bufferPool.maxPooled", 32);
+
+    /** Whether pools allocate direct buffers by default; set system property
+      * {@code plugins.wdx.bufferPool.direct} to {@code false} to use heap buffers.
+      */
+    public static final boolean DEFAULT_DIRECT = !"false".equals(System.getProperty("plugins.wdx.bufferPool.direct"));
+
+    private final int bufferSize;
+    private final int maxPooled;
+    private volatile boolean direct;
+
+    private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger freeCount = new AtomicInteger();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong discards = new AtomicLong();
+    private final AtomicLong heapFallbacks = new AtomicLong();
+
+    public BufferPool(int bufferSize) {
+        this(bufferSize, DEFAULT_MAX_POOLED, DEFAULT_DIRECT);
+    }
+
+    public BufferPool(int bufferSize, int maxPooled, boolean direct) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("bufferSize must be >= 1: " + bufferSize);
+        }
+        if (maxPooled < 0) {
+            throw new IllegalArgumentException("maxPooled must be >= 0: " + maxPooled);
+        }
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+        this.direct = direct;
+    }
+
+    public int bufferSize() {
+        return bufferSize;
+    }
+
+    public int maxPooled() {
+        return maxPooled;
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /** Returns a cleared buffer of {@link #bufferSize} bytes; pass it to
+      * {@link #release} when done with it.
+      */
+    public ByteBuffer acquire() {
+        ByteBuffer buf = free.poll();
+        if (buf != null) {
+            freeCount.decrementAndGet();
+            hits.incrementAndGet();
+            buf.clear();
+            return buf;
+        }
+        misses.incrementAndGet();
+        return allocate();
+    }
+
+    private ByteBuffer allocate() {
+        if (direct) {
+            try {
+                return ByteBuffer.allocateDirect(bufferSize);
+            } catch (OutOfMemoryError e) {
+                heapFallbacks.incrementAndGet();
+                if (direct) {   // warn only once, even if several threads failed at once
+                    direct = false;
+                    myLog.warn("falling back to heap buffers: " + e);
+                }
+            }
+        }
+        return ByteBuffer.allocate(bufferSize);
+    }
+
+    /** Puts {@code buf} back into the pool; it must not be used any more by
+      * the caller. Buffers of a different size, or beyond {@link #maxPooled},
+      * are left to the garbage collector. Passing null has no effect.
+      */
+    public void release(ByteBuffer buf) {
+        if (buf == null) {
+            return;
+        }
+        if ((buf.capacity() != bufferSize) || buf.isReadOnly()) {
+            discards.incrementAndGet();
+            return;
+        }
+        if (freeCount.incrementAndGet() > maxPooled) {
+            freeCount.decrementAndGet();
+            discards.incrementAndGet();
+            return;
+        }
+        buf.clear();
+        free.offer(buf);
+    }
+
+    /** Drops all idle buffers; subsequent allocations go to the heap if
+      * {@code direct} is false.
+      */
+    public void clear(boolean direct) {
+        this.direct = direct;
+        while (free.poll() != null) {
+            freeCount.decrementAndGet();
+        }
+    }
+
+    /** Number of buffers currently idle in the pool. */
+    public int pooled() {
+        return freeCount.get();
+    }
+
+    public long hits() {
+        return hits.get();
+    }
+
+    public long misses() {
+        return misses.get();
+    }
+
+    public long discards() {
+        return discards.get();
+    }
+
+    public long heapFallbacks() {
+        return heapFallbacks.get();
+    }
+
+    public String toString() {
+        return (direct ? "direct" : "heap") + " x " + bufferSize
+            + ": " + pooled() + "/" + maxPooled + " pooled"
+            + ", " + hits() + " hits, " + misses() + " misses, " + discards() + " discards"
+            + (heapFallbacks() > 0 ? ", " + heapFallbacks() + " heap fallbacks" : "");
+    }
+
+}
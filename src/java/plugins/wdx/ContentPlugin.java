@@ -12,6 +12,9 @@ import java.nio.*;
 import java.nio.file.*;
 import java.nio.channels.*;
 
+import java.lang.management.ManagementFactory;
+import javax.management.*;
+
 import plugins.UncheckedIOException;
 import plugins.wdx.WDXPluginAdapter;
 import plugins.wdx.FieldValue;
@@ -33,6 +36,7 @@ public abstract class ContentPlugin extends WDXPluginAdapter {
             log = LogFactory.getLog(this.getClass());
         }
         initFields();
+        registerMXBean();
     }
     
     protected abstract void initFields();
@@ -63,8 +67,83 @@ public abstract class ContentPlugin extends WDXPluginAdapter {
         return (Field<T>)namesToFields.get(name);
     }
 
+    /** Default maximum number of values kept by {@link #enableValueCache()};
+      * may be overridden by system property {@code plugins.wdx.valueCache.maxEntries}.
+      */
+    public static final int DEFAULT_VALUE_CACHE_ENTRIES = Integer.getInteger("plugins.wdx.valueCache.maxEntries", 10000);
+
+    /** Default maximum (estimated) heap taken by {@link #enableValueCache()};
+      * may be overridden by system property {@code plugins.wdx.valueCache.maxBytes}.
+      */
+    public static final long DEFAULT_VALUE_CACHE_BYTES = Long.getLong("plugins.wdx.valueCache.maxBytes", 8L << 20);
+
+    private volatile ValueCache valueCache = null;
+
+    /** Turns on the value cache with {@link #DEFAULT_VALUE_CACHE_ENTRIES} and
+      * {@link #DEFAULT_VALUE_CACHE_BYTES}.
+      */
+    public void enableValueCache() {
+        enableValueCache(DEFAULT_VALUE_CACHE_ENTRIES, DEFAULT_VALUE_CACHE_BYTES);
+    }
+
+    /** Turns on remembering field values per (field, path, size, last-modified),
+      * for up to {@code maxEntries} values taking up to about {@code maxBytes} of heap;
+      * least recently used values are evicted first. Fields can opt out via
+      * {@link Field#isCacheable} - they must, if their values can change without the
+      * file's size or last-modified time changing (eg. ones derived from ADSs).
+      */
+    public void enableValueCache(int maxEntries, long maxBytes) {
+        this.valueCache = new ValueCache(maxEntries, maxBytes);
+    }
+
+    public void disableValueCache() {
+        this.valueCache = null;
+    }
+
+    /** The cache in use, or null if not {@link #enableValueCache enable}d. */
+    public ValueCache getValueCache() {
+        return valueCache;
+    }
+
+    private volatile boolean isCacheBypassed = false;
+
+    /** Whether values are to be computed afresh rather than taken from the plugin's
+      * own caches (eg. values stored in ADSs) or from reads done for other fields -
+      * set by {@link TestRunner} while measuring. Plugins with caches of their own
+      * should neither read nor write them while this is on.
+      */
+    public boolean isCacheBypassed() {
+        return isCacheBypassed;
+    }
+
+    public void setCacheBypassed(boolean isCacheBypassed) {
+        this.isCacheBypassed = isCacheBypassed;
+    }
+
+    /* The value cache key for field's value on the file, or null if not to be cached.
+     */
+    private ValueCache.Key cacheKey(ValueCache cache, Field<?> field, String fileName) throws IOException {
+        if ((cache == null) || !field.isCacheable()) {
+            return null;
+        }
+        return cache.key(field, fileName);
+    }
+
+    @SuppressWarnings("unchecked")
     public <T> T getValue(Field<T> field, String fileName) throws IOException {
-        return field.getValue(fileName);
+        ValueCache cache = valueCache;
+        ValueCache.Key key = cacheKey(cache, field, fileName);
+        if (key != null) {
+            Object cached = cache.get(key);
+            if (cached != ValueCache.MISS) {
+                return (T)cached;
+            }
+        }
+        T value = field.getValue(fileName);
+        if (key != null) {
+            cache.put(key, value);
+        }
+        return value;
     }
 
     public <T> T getValue(String fieldName, String fileName) throws IOException {
@@ -88,132 +167,938 @@ public abstract class ContentPlugin extends WDXPluginAdapter {
         }
     }
 
-    public Iterable<ByteBuffer> contents(final String fileName) throws IOException {
-        final AsynchronousFileChannel channel = AsynchronousFileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
-        return new Iterable<ByteBuffer>() {
-            boolean iteratorCalled = false;
-            public Iterator<ByteBuffer> iterator() {
-                if (iteratorCalled) {
-                    throw new IllegalStateException("iterator() may be called only once!");
+    /** Default number of reads {@link #contents} keeps in flight;
+      * may be overridden by system property {@code plugins.wdx.readAhead.depth}.
+      */
+    public static final int DEFAULT_READ_AHEAD_DEPTH = Integer.getInteger("plugins.wdx.readAhead.depth", 2);
+
+    /** Default size of the buffers {@link #contents} reads into;
+      * may be overridden by system property {@code plugins.wdx.readAhead.bufferSize}.
+      */
+    public static final int DEFAULT_READ_BUFFER_SIZE = Integer.getInteger("plugins.wdx.readAhead.bufferSize", 1024 * 128);  // ~2x cluster size seems optimal
+
+    /** Default for the largest file size read by a {@link Contents.Strategy#SINGLE} read
+      * (never more than the read buffer size); may be overridden by system property
+      * {@code plugins.wdx.readStrategy.singleMax}.
+      */
+    public static final long DEFAULT_SINGLE_READ_MAX = Long.getLong("plugins.wdx.readStrategy.singleMax", DEFAULT_READ_BUFFER_SIZE);
+
+    /** Default for the smallest file size read {@link Contents.Strategy#MAPPED};
+      * may be overridden by system property {@code plugins.wdx.readStrategy.mappedMin}.
+      */
+    public static final long DEFAULT_MAPPED_READ_MIN = Long.getLong("plugins.wdx.readStrategy.mappedMin", 1L << 28);   // 256 MiB
+
+    /** Default size of the windows mapped by {@link Contents.Strategy#MAPPED} reads;
+      * may be overridden by system property {@code plugins.wdx.readStrategy.mapWindow}.
+      */
+    public static final long DEFAULT_MAP_WINDOW_SIZE = Long.getLong("plugins.wdx.readStrategy.mapWindow", 1L << 26);   // 64 MiB
+
+    private int readAheadDepth = DEFAULT_READ_AHEAD_DEPTH;
+    private volatile BufferPool bufferPool = new BufferPool(DEFAULT_READ_BUFFER_SIZE);
+    private final Contents.Stats readStats = new Contents.Stats();
+
+    private long singleReadMax = DEFAULT_SINGLE_READ_MAX;
+    private long mappedReadMin = DEFAULT_MAPPED_READ_MIN;
+    private long mapWindowSize = DEFAULT_MAP_WINDOW_SIZE;
+
+    /** Sets the number of reads {@link #contents} keeps in flight (at least 1)
+      * and the size of each read buffer, in bytes. If the size changes, a new
+      * {@link BufferPool} is set up for it.
+      */
+    public void setReadAhead(int depth, int bufferSize) {
+        if (depth < 1) {
+            throw new IllegalArgumentException("read-ahead depth must be >= 1: " + depth);
+        }
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("read buffer size must be >= 1: " + bufferSize);
+        }
+        this.readAheadDepth = depth;
+        if (bufferSize != bufferPool.bufferSize()) {
+            BufferPool old = bufferPool;
+            setBufferPool(new BufferPool(bufferSize, old.maxPooled(), old.isDirect()));
+        }
+    }
+
+    public int getReadAheadDepth() {
+        return readAheadDepth;
+    }
+
+    public int getReadBufferSize() {
+        return bufferPool.bufferSize();
+    }
+
+    /** The pool all of this plugin's {@link #contents} borrow their buffers from. */
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /** Replaces the pool {@link #contents} borrows its buffers from, and thus
+      * the read buffer size; eg to share one pool among several plugins.
+      */
+    public void setBufferPool(BufferPool pool) {
+        if (pool == null) {
+            throw new IllegalArgumentException("buffer pool must not be null");
+        }
+        this.bufferPool = pool;
+    }
+
+    /** Accumulated {@link Contents.Stats} of all {@link #contents} read so far. */
+    public Contents.Stats getReadStats() {
+        return readStats;
+    }
+
+    /** Sets the file sizes at which {@link #contents} switches strategies:
+      * files of up to {@code singleMax} bytes (but no more than the read buffer
+      * size) are read {@link Contents.Strategy#SINGLE SINGLE}, files of
+      * {@code mappedMin} bytes or more are read {@link Contents.Strategy#MAPPED MAPPED}
+      * in windows of {@code mapWindow} bytes (if the JRE lets them be unmapped, see
+      * {@link MappedRead#CAN_UNMAP}), all others {@link Contents.Strategy#READ_AHEAD READ_AHEAD}.
+      */
+    public void setReadThresholds(long singleMax, long mappedMin, long mapWindow) {
+        if ((mapWindow < 1) || (mapWindow > Integer.MAX_VALUE)) {
+            throw new IllegalArgumentException("map window size must be in [1, " + Integer.MAX_VALUE + "]: " + mapWindow);
+        }
+        this.singleReadMax = singleMax;
+        this.mappedReadMin = mappedMin;
+        this.mapWindowSize = mapWindow;
+    }
+
+    /** The strategy {@link #contents} uses for a file of {@code size} bytes. */
+    public Contents.Strategy readStrategyFor(long size) {
+        if (size <= Math.min(singleReadMax, bufferPool.bufferSize())) {
+            return Contents.Strategy.SINGLE;
+        }
+        if ((size >= mappedReadMin) && MappedRead.CAN_UNMAP) {
+            return Contents.Strategy.MAPPED;
+        }
+        return Contents.Strategy.READ_AHEAD;
+    }
+
+    /** Returns the contents of the specified file, read as chosen by {@link #readStrategyFor}
+      * its size. If called while working on a {@link WorkItem}, the contents are
+      * {@link WorkItem#attach attach}ed to it so {@link #contentStopGetValue} stops
+      * them right away.
+      */
+    public Contents contents(final String fileName) throws IOException {
+        return contents(fileName, 0);
+    }
+
+    /** Same as {@link #contents(String)}, but from byte {@code position} on (eg. to
+      * continue where an earlier read left off); the strategy is chosen by the number
+      * of bytes from there.
+      */
+    public Contents contents(final String fileName, long position) throws IOException {
+        if (position < 0) {
+            throw new IllegalArgumentException("position must be >= 0: " + position);
+        }
+        Contents result = openContents(fileName, position);
+        result.fileName = fileName;
+        WorkItem workItem = WorkItem.current();
+        if (workItem != null) {
+            workItem.attach(result);
+        }
+        return result;
+    }
+
+    private Contents openContents(final String fileName, long position) throws IOException {
+        Path path = Paths.get(fileName);
+        FileChannel fc;
+        switch (readStrategyFor(Math.max(0, Files.size(path) - position))) {
+            case SINGLE:
+                fc = FileChannel.open(path, StandardOpenOption.READ);
+                try {
+                    if (fc.size() - position <= bufferPool.bufferSize()) {
+                        return new SingleRead(fc, position, bufferPool, readStats);
+                    }
+                } catch (IOException e) {
+                    fc.close();
+                    throw e;
+                }
+                fc.close(); // grown meanwhile
+                break;
+            case MAPPED:
+                fc = FileChannel.open(path, StandardOpenOption.READ);
+                try {
+                    return new MappedRead(fc, position, mapWindowSize, bufferPool.bufferSize(), readStats);
+                } catch (IOException e) {
+                    fc.close();
+                    throw e;
                 }
-                iteratorCalled = true;
-                return new Iterator<ByteBuffer>() {
-                    
-                    ByteBuffer bufA = ByteBuffer.allocate(1024 * 128);  // ~2x cluster size seems optimal
-                    Future<Integer> bufAFuture = null;
-                    boolean isBufAReady = false;
-
-                    ByteBuffer bufB = ByteBuffer.allocate(1024 * 128);  // ~2x cluster size seems optimal
-                    Future<Integer> bufBFuture = null;
-                    boolean isBufBReady = false;
-                    
-                    ByteBuffer nextOut = bufA;
-                    long ttlBytesRead = 0;
-                    boolean isFinished = false;
-
-                    private Future<Integer> prepareNextOut(ByteBuffer buf) {
-                        nextOut = buf;
-                        nextOut.clear();
-                        return channel.read(nextOut, ttlBytesRead);
+            default:
+                break;
+        }
+        AsynchronousFileChannel channel = AsynchronousFileChannel.open(path, StandardOpenOption.READ);
+        try {
+            return new ReadAhead(channel, position, readAheadDepth, bufferPool, readStats);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /** How long after TC last asked for a field it still takes part in reads
+      * started for other fields (and how long values computed that way are
+      * kept for it); may be overridden by system property {@code plugins.wdx.tap.window}.
+      */
+    public static final long TAP_WINDOW_MILLIS = Long.getLong("plugins.wdx.tap.window", 60 * 1000);
+
+    private static final Object NONE = new Object();
+
+    private final ConcurrentHashMap<String, Pass> passes = new ConcurrentHashMap<>();
+
+    /** Computes {@code field}'s value by feeding the file's {@link #contents} to {@code tap}
+      * - and, in the same read, to the {@link Field#tap Tap}s of all other fields TC has
+      * asked for within the last {@link #TAP_WINDOW_MILLIS}. Their values are kept until
+      * TC asks for them, too, provided the file's size and last-modified time are still
+      * the same then. Likewise, if a read already in progress (on another thread)
+      * includes {@code field}, its value is taken from there.
+      * <p>
+      * Meant to be called from a Field's {@link Field#getValue getValue}; that field's
+      * {@code tap(..)} isn't called (the {@code tap} passed in is used instead).
+      */
+    @SuppressWarnings("unchecked")
+    public <T> T valueFromContents(Field<T> field, Tap<T> tap, String fileName) throws IOException {
+        File file = new File(fileName);
+        Pass pass = isCacheBypassed ? null : passes.get(fileName);
+        if (pass != null) {
+            Object value = pass.take(field, file);
+            if (value != NONE) {
+                return (T)value;
+            }
+        }
+        pass = new Pass(fileName, file);
+        pass.taps.put(field, tap);
+        long now = System.currentTimeMillis();
+        for (Field<?> other: fields) {
+            if ((other != field) && !isCacheBypassed && (now - other.lastRequested <= TAP_WINDOW_MILLIS)) {
+                try {
+                    Tap<?> t = other.tap(fileName);
+                    if (t != null) {
+                        pass.taps.put(other, t);
                     }
+                } catch (IOException e) {
+                    myLog.error(other.name + ".tap(\"" + fileName + "\"): " + e);
+                }
+            }
+        }
+        if (pass.taps.size() > 1) {
+            for (Pass p: passes.values()) {
+                if (p.isExpired(now)) {
+                    passes.remove(p.fileName, p);
+                }
+            }
+            Pass old = passes.get(fileName);
+            if ((old == null) || old.isDone()) {
+                passes.put(fileName, pass);
+            }
+        }
+        pass.run();
+        return (T)pass.take(field, null);
+    }
 
-                    private boolean fillNextOut() throws IOException {
-                        Future<Integer> f = null;
-                        if (nextOut == bufA) {
-                            if (bufAFuture == null) {
-                                bufAFuture = prepareNextOut(nextOut);
-                            }
-                            f = bufAFuture;
-                        } else { // buf == bufB
-                            if (bufBFuture == null) {
-                                bufBFuture = prepareNextOut(nextOut);
-                            }
-                            f = bufBFuture;
-                        }
-                        int bytesRead;
-                        //bytesRead = channel.read(nextOut, ttlBytesRead);
-                        try {
-                            bytesRead = f.get();
-                            if (bytesRead < 0) {
-                                channel.close();
-                                isFinished = true;
-                                return false;
-                            }
-                            nextOut.flip();
-                            nextOut.mark();
-                            ttlBytesRead += nextOut.remaining();
-                            return true;
-                        } catch (InterruptedException e) {
-                            myLog.error("Future.get() threw " + e);
-                            throw new AsynchronousCloseException();
-                        } catch (ExecutionException e) {
-                            Throwable inner = e.getCause();
-                            if (inner instanceof IOException) {
-                                throw new UncheckedIOException((IOException)inner);
-                            }
-                            throw new RuntimeException(inner);
-                        } // TODO: CancellationException, TimeoutException
+    /** One read of a file, feeding several Taps (in parallel, see {@link FanOut}). */
+    private final class Pass {
+
+        final String fileName;
+        final long size;
+        final long lastModified;
+        final Map<Field<?>, Tap<?>> taps = new LinkedHashMap<>();
+
+        private final Map<Field<?>, Object> values = new HashMap<>();   // guarded by this
+        private final Map<Field<?>, IOException> failures = new HashMap<>(); // guarded by this
+        private boolean isDone = false;                                 // guarded by this
+        private boolean isFailed = false;                               // guarded by this
+        private long doneAt;                                            // guarded by this
+
+        Pass(String fileName, File file) {
+            this.fileName = fileName;
+            this.size = file.length();
+            this.lastModified = file.lastModified();
+        }
+
+        void run() throws IOException {
+            List<Tap<?>> lanes = new ArrayList<>(taps.values());
+            try {
+                for (ByteBuffer buf: contents(fileName)) {
+                    FanOut.update(lanes, buf);
+                }
+            } catch (IOException | RuntimeException | Error e) {
+                synchronized (this) {
+                    isFailed = isDone = true;
+                    notifyAll();
+                }
+                passes.remove(fileName, this);
+                throw e;
+            }
+            Map<Field<?>, Object> values = new HashMap<>();
+            Map<Field<?>, IOException> failures = new HashMap<>();
+            for (Map.Entry<Field<?>, Tap<?>> e: taps.entrySet()) {
+                try {
+                    values.put(e.getKey(), e.getValue().finish());
+                } catch (IOException x) {
+                    failures.put(e.getKey(), x);
+                }
+            }
+            synchronized (this) {
+                this.values.putAll(values);
+                this.failures.putAll(failures);
+                isDone = true;
+                doneAt = System.currentTimeMillis();
+                notifyAll();
+            }
+        }
+
+        synchronized boolean isDone() {
+            return isDone;
+        }
+
+        synchronized boolean isExpired(long now) {
+            return isDone && (isFailed || (now - doneAt > TAP_WINDOW_MILLIS) || (values.isEmpty() && failures.isEmpty()));
+        }
+
+        /* Waits for this pass to finish if it includes field; returns (and
+         * forgets) field's value, or NONE if not included, failed or outdated
+         * with respect to file (not checked if file is null).
+         */
+        Object take(Field<?> field, File file) throws IOException {
+            synchronized (this) {
+                if (!taps.containsKey(field)) {
+                    return NONE;
+                }
+                try {
+                    while (!isDone) {
+                        wait();
                     }
-                    
-                    @Override
-                    public boolean hasNext() throws UncheckedIOException {
-                        try {
-                            if (isFinished) {
-                                return false;
-                            }
-                            if (nextOut == bufA) {
-                                if (isBufAReady) {
-                                    return true;
-                                }
-                                return isBufAReady = fillNextOut();
-                            } else { // nextOut == bufB
-                                if (isBufBReady) {
-                                    return true;
-                                }
-                                return isBufBReady = fillNextOut();
-                            }
-                        } catch (IOException e) {
-                            myLog.error("contents:" + e);
-                            throw new UncheckedIOException(e);
+                } catch (InterruptedException e) {
+                    throw new ClosedByInterruptException();
+                }
+                if (isFailed || (!values.containsKey(field) && !failures.containsKey(field))) {
+                    return NONE;
+                }
+            }
+            boolean isValid = (file == null) || ((file.length() == size) && (file.lastModified() == lastModified));
+            synchronized (this) {
+                Object value = values.remove(field);
+                IOException failure = failures.remove(field);
+                if (values.isEmpty() && failures.isEmpty()) {
+                    passes.remove(fileName, this);
+                }
+                if (!isValid) {
+                    return NONE;
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+                return value;
+            }
+        }
+    }
+
+    private WorkItem.Store pending = new WorkItem.Store();
+
+    /** The WorkItems currently being worked on, along with stop latencies. */
+    public WorkItem.Store getWorkItems() {
+        return pending;
+    }
+
+    /** Default number of threads computing values TC was told are {@code FT_DELAYED};
+      * may be overridden by system property {@code plugins.wdx.background.threads}.
+      */
+    public static final int DEFAULT_BACKGROUND_THREADS = Integer.getInteger("plugins.wdx.background.threads", 2);
+
+    /** Default maximum number of delayed values waiting for a background thread;
+      * may be overridden by system property {@code plugins.wdx.background.queue}.
+      */
+    public static final int DEFAULT_BACKGROUND_QUEUE = Integer.getInteger("plugins.wdx.background.queue", 64);
+
+    // keyed by backgroundKey(..):
+    private final ConcurrentHashMap<String, Background> background = new ConcurrentHashMap<>();
+    private ThreadPoolExecutor backgroundExecutor = null;   // guarded by background; created on first use
+
+    private static String backgroundKey(Field<?> field, String fileName) {
+        return fileName + "|" + field.name;     // '|' is not allowed in file names
+    }
+
+    /* Queues the computation of field's value on the file, unless already
+     * queued, running or done (and not yet taken). If the queue is full,
+     * nothing happens - TC will ask again anyway.
+     */
+    private void startInBackground(Field<?> field, String fileName, int unitIndex) {
+        purgeBackground();
+        Background bg = new Background(field, fileName, unitIndex);
+        if (background.putIfAbsent(bg.key, bg) != null) {
+            return;
+        }
+        try {
+            backgroundExecutor().execute(bg);
+        } catch (RejectedExecutionException e) {
+            background.remove(bg.key, bg);
+            myLog.debug("background queue full, not queued: " + bg);
+        }
+    }
+
+    /* Drops the values computed in the background that weren't taken in time. */
+    private void purgeBackground() {
+        long now = System.currentTimeMillis();
+        for (Background bg: background.values()) {
+            if (bg.isExpired(now)) {
+                background.remove(bg.key, bg);
+            }
+        }
+    }
+
+    private ThreadPoolExecutor backgroundExecutor() {
+        synchronized (background) {
+            if (backgroundExecutor == null) {
+                final String name = getClass().getSimpleName() + "-background-";
+                ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                    DEFAULT_BACKGROUND_THREADS, DEFAULT_BACKGROUND_THREADS,
+                    30, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(DEFAULT_BACKGROUND_QUEUE),
+                    new ThreadFactory() {
+                        private int n = 0;
+                        public synchronized Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, name + n++);
+                            t.setDaemon(true);
+                            t.setPriority(Thread.NORM_PRIORITY - 1);
+                            return t;
                         }
+                    });
+                executor.allowCoreThreadTimeOut(true);
+                backgroundExecutor = executor;
+            }
+            return backgroundExecutor;
+        }
+    }
+
+    /* Takes field's value on the file from a background computation, if there
+     * is one: waits for it if running, or cancels it if still queued (so the
+     * caller computes it right away instead). Returns NONE if there's no
+     * background computation or it was cancelled, stopped or failed other
+     * than with an IOException - or if the file's size or last-modified time
+     * changed since it started.
+     */
+    private Object takeFromBackground(Field<?> field, String fileName) throws IOException {
+        purgeBackground();
+        Background bg = background.get(backgroundKey(field, fileName));
+        if ((bg == null) || bg.cancel()) {
+            return NONE;
+        }
+        try {
+            return bg.await();
+        } finally {
+            background.remove(bg.key, bg);
+        }
+    }
+
+    /* Cancels the queued background computations for the file;
+     * running ones are stopped via their WorkItems.
+     */
+    private int cancelBackground(String fileName) {
+        int n = 0;
+        for (Background bg: background.values()) {
+            if (bg.fileName.equals(fileName) && bg.cancel()) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /** A value computed on one of the background threads, for a later blocking call. */
+    private final class Background implements Runnable {
+
+        final Field<?> field;
+        final String fileName;
+        final int unitIndex;
+        final String key;
+
+        private boolean isRunning = false;  // guarded by this
+        private boolean isDone = false;     // guarded by this
+        private Object value = NONE;        // guarded by this
+        private IOException failure = null; // guarded by this
+        private long doneAt;                // guarded by this
+        private long size;                  // guarded by this; of the file when started
+        private long lastModified;          // guarded by this; of the file when started
+        private volatile WorkItem workItem = null;
+
+        Background(Field<?> field, String fileName, int unitIndex) {
+            this.field = field;
+            this.fileName = fileName;
+            this.unitIndex = unitIndex;
+            this.key = backgroundKey(field, fileName);
+        }
+
+        public void run() {
+            synchronized (this) {
+                if (isRunning || isDone) {
+                    return;
+                }
+                isRunning = true;
+                File file = new File(fileName);
+                size = file.length();
+                lastModified = file.lastModified();
+            }
+            Object value = NONE;
+            IOException failure = null;
+            long t = System.nanoTime();
+            WorkItem workItem = this.workItem = pending.newItem(fileName, field, unitIndex);
+            try {
+                try {
+                    value = getValue(field, fileName);  // also puts it into the value cache
+                } catch (UncheckedIOException e) {
+                    throw (IOException)e.getCause();
+                }
+            } catch (AsynchronousCloseException e) {    // stopped
+                myLog.debug("stopped background " + field.name + " after " + workItem.getTime() + " ms for \"" + fileName + "\"");
+            } catch (IOException e) {
+                failure = e;
+            } catch (RuntimeException e) {
+                myLog.error("background " + field.name + " for \"" + fileName + "\": " + e);
+            } finally {
+                workItem.cleanup();
+            }
+            field.stats.read(workItem.getBytesRead(), System.nanoTime() - t);
+            complete(value, failure);
+            if ((value == NONE) && (failure == null)) {
+                background.remove(key, this);
+            }
+        }
+
+        /* Cancels it if not running yet; returns whether it was cancelled. */
+        boolean cancel() {
+            synchronized (this) {
+                if (isRunning || isDone) {
+                    return false;
+                }
+                isDone = true;
+                doneAt = System.currentTimeMillis();
+                notifyAll();
+            }
+            background.remove(key, this);
+            ThreadPoolExecutor executor;
+            synchronized (background) {
+                executor = backgroundExecutor;
+            }
+            if (executor != null) {
+                executor.remove(this);
+            }
+            return true;
+        }
+
+        /* Cancels it if not running yet, stops it otherwise. */
+        void stop() {
+            if (!cancel()) {
+                WorkItem workItem = this.workItem;
+                if (workItem != null) {
+                    workItem.requestStop();
+                }
+            }
+        }
+
+        private synchronized void complete(Object value, IOException failure) {
+            this.value = value;
+            this.failure = failure;
+            isDone = true;
+            doneAt = System.currentTimeMillis();
+            notifyAll();
+        }
+
+        /* Waits for it to be done; NONE if the file has changed since it started. */
+        synchronized Object await() throws IOException {
+            try {
+                while (!isDone) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                throw new ClosedByInterruptException();
+            }
+            File file = new File(fileName);
+            if ((file.length() != size) || (file.lastModified() != lastModified)) {
+                if (myLog.isDebugEnabled()) {
+                    myLog.debug("outdated background " + this + ": file changed meanwhile");
+                }
+                return NONE;
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return value;
+        }
+
+        synchronized boolean isExpired(long now) {
+            return isDone && (now - doneAt > TAP_WINDOW_MILLIS);
+        }
+
+        public String toString() {
+            return field.name + "(\"" + fileName + "\")";
+        }
+    }
+
+    /** Default maximum number of files {@link #enablePrefetch() prefetch}ed per folder;
+      * may be overridden by system property {@code plugins.wdx.prefetch.maxFiles}.
+      */
+    public static final int DEFAULT_PREFETCH_FILES = Integer.getInteger("plugins.wdx.prefetch.maxFiles", 200);
+
+    /** Default maximum number of bytes of file contents {@link #enablePrefetch() prefetch}ed
+      * per folder; may be overridden by system property {@code plugins.wdx.prefetch.maxBytes}.
+      */
+    public static final long DEFAULT_PREFETCH_BYTES = Long.getLong("plugins.wdx.prefetch.maxBytes", 1L << 28);   // 256 MiB
+
+    /** Default number of threads prefetching per folder;
+      * may be overridden by system property {@code plugins.wdx.prefetch.threads}.
+      */
+    public static final int DEFAULT_PREFETCH_THREADS = Integer.getInteger("plugins.wdx.prefetch.threads", 1);
+
+    private volatile int prefetchFiles = 0; // 0: prefetch disabled
+    private long prefetchBytes = 0;         // guarded by background
+    private int prefetchThreads = 0;        // guarded by background
+    private Prefetch prefetch = null;       // guarded by background
+    private ThreadPoolExecutor prefetchExecutor = null;     // guarded by background; created on first use
+
+    /** Turns on prefetching with {@link #DEFAULT_PREFETCH_FILES}, {@link #DEFAULT_PREFETCH_BYTES}
+      * and {@link #DEFAULT_PREFETCH_THREADS}.
+      */
+    public void enablePrefetch() {
+        enablePrefetch(DEFAULT_PREFETCH_FILES, DEFAULT_PREFETCH_BYTES, DEFAULT_PREFETCH_THREADS);
+    }
+
+    /** Turns on prefetching: on the first request for a file in another folder,
+      * the values of all fields TC has asked for within the last {@link #TAP_WINDOW_MILLIS}
+      * are computed for the other files in that folder, in listing order (by name),
+      * on {@code threads} background threads. Only values a field considers
+      * {@link Field#isDelayInOrder slow} are computed, for at most {@code maxFiles}
+      * files of at most {@code maxBytes} in total. The values go into the
+      * {@link ValueCache} (if enabled), and are handed to TC's requests for them
+      * just like {@code FT_DELAYED} ones.
+      * <p>
+      * Prefetching stops as soon as TC turns to another folder. All folders share
+      * the same {@code threads}, so there are never more prefetching at a time.
+      */
+    public void enablePrefetch(int maxFiles, long maxBytes, int threads) {
+        if ((maxFiles < 1) || (maxBytes < 1) || (threads < 1)) {
+            throw new IllegalArgumentException("prefetch maxFiles, maxBytes and threads must be >= 1: " + maxFiles + ", " + maxBytes + ", " + threads);
+        }
+        synchronized (background) {
+            this.prefetchFiles = maxFiles;
+            this.prefetchBytes = maxBytes;
+            this.prefetchThreads = threads;
+        }
+    }
+
+    public void disablePrefetch() {
+        synchronized (background) {
+            this.prefetchFiles = 0;
+        }
+        stopPrefetch(null);
+    }
+
+    /* Starts prefetching in fileName's folder if it's not the one prefetched
+     * in already (stopping that one).
+     */
+    private void prefetchFor(String fileName) {
+        if (prefetchFiles == 0) {
+            return;
+        }
+        File dir = new File(fileName).getParentFile();
+        if (dir == null) {
+            return;
+        }
+        Prefetch old, p;
+        int threads;
+        synchronized (background) {
+            if ((prefetchFiles == 0) || ((prefetch != null) && prefetch.dir.equals(dir))) {
+                return;
+            }
+            old = prefetch;
+            p = prefetch = new Prefetch(dir, new File(fileName).getName(), prefetchFiles, prefetchBytes, prefetchExecutor());
+            threads = prefetchThreads;
+        }
+        if (old != null) {
+            old.stop();     // before p starts, so its threads are free
+        }
+        p.start(threads);
+    }
+
+    /* The threads prefetching for any folder, prefetchThreads of them; guarded by background. */
+    private ThreadPoolExecutor prefetchExecutor() {
+        if (prefetchExecutor == null) {
+            final String name = getClass().getSimpleName() + "-prefetch-";
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                prefetchThreads, prefetchThreads,
+                30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private int n = 0;
+                    public synchronized Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, name + n++);
+                        t.setDaemon(true);
+                        t.setPriority(Thread.MIN_PRIORITY);
+                        return t;
                     }
-                    
-                    @Override
-                    public ByteBuffer next() {
-                        if (!hasNext()) {
-                            throw new NoSuchElementException();
-                        }
-                        if (nextOut == bufA) {
-                            bufBFuture = prepareNextOut(bufB);
-                            isBufAReady = false;
-                            return bufA;
-                        } else { // nextOut == bufB
-                            bufAFuture = prepareNextOut(bufA);
-                            isBufBReady = false;
-                            return bufB;
+                });
+            executor.allowCoreThreadTimeOut(true);
+            prefetchExecutor = executor;
+        } else if (prefetchThreads > prefetchExecutor.getMaximumPoolSize()) {
+            prefetchExecutor.setMaximumPoolSize(prefetchThreads);
+            prefetchExecutor.setCorePoolSize(prefetchThreads);
+        } else if (prefetchThreads < prefetchExecutor.getMaximumPoolSize()) {
+            prefetchExecutor.setCorePoolSize(prefetchThreads);
+            prefetchExecutor.setMaximumPoolSize(prefetchThreads);
+        }
+        return prefetchExecutor;
+    }
+
+    /* Stops prefetching unless it's in the specified folder (null: any). */
+    private void stopPrefetch(File dir) {
+        Prefetch p;
+        synchronized (background) {
+            p = prefetch;
+            if ((p == null) || p.dir.equals(dir)) {
+                return;
+            }
+            prefetch = null;
+        }
+        p.stop();
+    }
+
+    /** Stops prefetching when TC reads another folder. */
+    @Override
+    public void contentSendStateInformation(int state, String path) {
+        if ((state & CONTST_READNEWDIR) != 0) {
+            stopPrefetch(new File(path));
+        }
+    }
+
+    /** Computing the values of the other files in one folder. */
+    private final class Prefetch implements Runnable {
+
+        final File dir;
+        private final String first;
+        private final int maxFiles;
+        private final ThreadPoolExecutor executor;
+        private Iterator<File> files = null;        // listed by the first prefetch thread; guarded by this
+        private long bytesLeft;                     // guarded by this
+        private final Set<Background> running = new HashSet<>();   // guarded by this
+        private boolean isStopped = false;          // guarded by this
+
+        /* Cheap, as it's called on TC's request thread with background locked;
+         * the folder is listed by the prefetch threads.
+         */
+        Prefetch(File dir, String first, int maxFiles, long maxBytes, ThreadPoolExecutor executor) {
+            this.dir = dir;
+            this.executor = executor;
+            this.first = first;
+            this.maxFiles = maxFiles;
+            this.bytesLeft = maxBytes;
+        }
+
+        /* The files to prefetch for, in listing order, starting after the file TC asked for first. */
+        private List<File> list() {
+            String[] names = dir.list();
+            List<File> files = new ArrayList<>();
+            if (names != null) {
+                Arrays.sort(names, String.CASE_INSENSITIVE_ORDER);
+                int start = Arrays.asList(names).indexOf(first) + 1;
+                for (int i = 0; (i < names.length) && (files.size() < maxFiles); i++) {
+                    String name = names[(start + i) % names.length];
+                    if (!name.equals(first)) {
+                        files.add(new File(dir, name));
+                    }
+                }
+            }
+            return files;
+        }
+
+        void start(int threads) {
+            for (int i = 0; i < threads; i++) {
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException e) {    // unloading
+                    return;
+                }
+            }
+        }
+
+        public void run() {
+            File file;
+            while ((file = next()) != null) {
+                String fileName = file.getPath();
+                long now = System.currentTimeMillis();
+                for (Field<?> field: fields) {
+                    if (now - field.lastRequested > TAP_WINDOW_MILLIS) {
+                        continue;
+                    }
+                    try {
+                        if (!field.isDelayInOrder(fileName)) {
+                            continue;
                         }
+                    } catch (IOException e) {
+                        break;
+                    }
+                    Background bg = new Background(field, fileName, 0);
+                    Background old = background.putIfAbsent(bg.key, bg);
+                    if (old != null) {
+                        continue;   // delayed by TC already, or another thread's
                     }
-                    
-                    @Override
-                    public void remove() {
-                        throw new UnsupportedOperationException();
+                    synchronized (this) {
+                        if (isStopped) {
+                            bg.cancel();
+                            return;
+                        }
+                        running.add(bg);
                     }
-                    
-                    @Override
-                    public void finalize() throws Throwable {
-                        channel.close(); // has no effect if already closed 
+                    bg.run();
+                    synchronized (this) {
+                        running.remove(bg);
                     }
-                };
+                }
             }
-            
-            @Override
-            public void finalize() throws Throwable {
-                channel.close(); // has no effect if already closed 
+        }
+
+        /* The next file to prefetch for, or null if stopped or out of files or bytes. */
+        private synchronized File next() {
+            if (!isStopped && (files == null)) {
+                files = list().iterator();
             }
-        };
+            while (!isStopped && files.hasNext()) {
+                File file = files.next();
+                if (!file.isFile()) {
+                    continue;
+                }
+                long size = file.length();
+                if (size > bytesLeft) {
+                    continue;   // maybe a smaller one still fits
+                }
+                bytesLeft -= size;
+                return file;
+            }
+            return null;
+        }
+
+        void stop() {
+            Background[] toStop;
+            synchronized (this) {
+                isStopped = true;
+                toStop = running.toArray(new Background[running.size()]);
+            }
+            for (Background bg: toStop) {
+                bg.stop();
+            }
+            while (executor.remove(this)) {
+                // not started yet
+            }
+        }
     }
 
-    private WorkItem.Store pending = new WorkItem.Store();
+    /** Shuts down the background threads, cancelling queued computations
+      * and stopping running ones, and unregisters the {@link ContentPluginMXBean}.
+      */
+    @Override
+    public void contentPluginUnloading() {
+        unregisterMXBean();
+        stopPrefetch(null);
+        ThreadPoolExecutor executor, prefetchers;
+        synchronized (background) {
+            executor = backgroundExecutor;
+            backgroundExecutor = null;
+            prefetchers = prefetchExecutor;
+            prefetchExecutor = null;
+        }
+        if (prefetchers != null) {
+            prefetchers.shutdownNow();
+        }
+        for (Background bg: background.values()) {
+            if (!bg.cancel()) {
+                for (WorkItem it: pending.items(bg.fileName)) {
+                    it.requestStop();
+                }
+            }
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        background.clear();
+    }
+
+    private ObjectName mxBeanName = null;
+
+    /* Registers this plugin's ContentPluginMXBean with the platform MBeanServer,
+     * replacing the one of an earlier instance of the same class (TC re-loading it).
+     */
+    private void registerMXBean() {
+        try {
+            ObjectName name = new ObjectName("plugins.wdx:type=ContentPlugin,name=" + ObjectName.quote(getClass().getSimpleName()));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(new MXBean(), name);
+            mxBeanName = name;
+        } catch (JMException | SecurityException e) {
+            myLog.error("could not register MXBean: " + e);
+        }
+    }
+
+    private void unregisterMXBean() {
+        ObjectName name = mxBeanName;
+        mxBeanName = null;
+        if (name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (JMException | SecurityException e) {
+                myLog.error("could not unregister MXBean: " + e);
+            }
+        }
+    }
+
+    private final class MXBean implements ContentPluginMXBean {
+
+        public FieldInfo[] getFields() {
+            FieldInfo[] result = new FieldInfo[fields.size()];
+            for (int i = 0; i < result.length; i++) {
+                Field<?> f = fields.get(i);
+                result[i] = new FieldInfo(f.name, f.stats);
+            }
+            return result;
+        }
+
+        public String[] getPendingWorkItems() {
+            List<String> result = new ArrayList<>();
+            for (String fileName: pending.fileNames()) {
+                for (WorkItem it: pending.items(fileName)) {
+                    result.add(it.toString());
+                }
+            }
+            return result.toArray(new String[result.size()]);
+        }
+
+        public long getStopsServed() {
+            return pending.stopsServed();
+        }
+
+        public long getMaxStopLatencyNanos() {
+            return pending.maxStopLatencyNanos();
+        }
+
+        public String getReadStats() {
+            return readStats.toString();
+        }
+
+        public String getBufferPool() {
+            return bufferPool.toString();
+        }
+
+        public String getValueCache() {
+            ValueCache cache = valueCache;
+            return (cache == null) ? "" : cache.toString();
+        }
+
+        public void resetFieldStats() {
+            for (Field<?> f: fields) {
+                f.stats.reset();
+            }
+        }
+    }
 
     @Override
     public final int contentGetSupportedField(int fieldIndex,
@@ -263,23 +1148,76 @@ public abstract class ContentPlugin extends WDXPluginAdapter {
             return FT_NOSUCHFIELD;
         }
         Field<?> field = fields.get(fieldIndex);
+        Events.GetValue event = null;
+        if (Events.ENABLED) {
+            event = new Events.GetValue();
+            event.begin();
+        }
+        long t = System.nanoTime();
+        int result = getValue(field, fileName, unitIndex, fieldValue, flags, event);
+        field.stats.call(result, System.nanoTime() - t);
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.plugin = getClass().getSimpleName();
+                event.field = field.name;
+                event.file = fileName;
+                event.delayIfSlow = (flags & CONTENT_DELAYIFSLOW) != 0;
+                event.outcome = Events.outcome(result);
+                event.commit();
+            }
+        }
+        return result;
+    }
+
+    /* If non-null, event gets the number of bytes read. */
+    private int getValue(Field<?> field, String fileName, int unitIndex, FieldValue fieldValue, int flags, Events.GetValue event) {
+        field.lastRequested = System.currentTimeMillis();
+        prefetchFor(fileName);
+        ValueCache cache = valueCache;
+        ValueCache.Key key;
         boolean isSlow;
         try {
+            key = cacheKey(cache, field, fileName);
+            if (key != null) {
+                Object cached = cache.get(key);
+                if (cached != ValueCache.MISS) {
+                    field.stats.cacheHit();
+                    return field.transfer(cached, fieldValue);
+                }
+            }
             isSlow = field.isDelayInOrder(fileName);
         } catch (IOException e) {
             myLog.error(e);
             return FT_FILEERROR;
         }
         if (isSlow && ( (flags & CONTENT_DELAYIFSLOW) != 0 )) {
-            myLog.warn("delayed " + field.name + ".getValue(\"" + fileName + "\").");
+            if (myLog.isDebugEnabled()) {
+                myLog.debug("delayed " + field.name + ".getValue(\"" + fileName + "\").");
+            }
+            startInBackground(field, fileName, unitIndex);
             return FT_DELAYED;
         }
+        long t = System.nanoTime();
         WorkItem workItem = pending.newItem(fileName, field, unitIndex);
         try {
             try {
-                Object value = field.getValue(fileName);
+                Object value = isSlow ? takeFromBackground(field, fileName) : NONE;
+                if (value == NONE) {
+                    value = field.getValue(fileName);
+                    if (key != null) {
+                        cache.put(key, value);
+                    }
+                }
                 workItem.cleanup();
-                myLog.warn("end " + (isSlow ? "slow " : "") + field.name + " after " + workItem.getTime() + "ms: " + value + " for \"" + fileName + "\"");
+                long bytes = workItem.getBytesRead();
+                field.stats.read(bytes, System.nanoTime() - t);
+                if (event != null) {
+                    event.bytes = bytes;
+                }
+                if (myLog.isDebugEnabled()) {
+                    myLog.debug("end " + (isSlow ? "slow " : "") + field.name + " after " + workItem.getTime() + "ms: " + value + " for \"" + fileName + "\"");
+                }
                 return field.transfer(value, fieldValue);
             } catch (UncheckedIOException e) {
                 //throw e.inner;
@@ -287,10 +1225,19 @@ public abstract class ContentPlugin extends WDXPluginAdapter {
             }
         } catch (AsynchronousCloseException e) {    // also catches ClosedByInterruptException
             workItem.cleanup();
-            myLog.warn(e + " after " + workItem.getTime() + " ms for " + fileName);
+            if (event != null) {
+                event.bytes = workItem.getBytesRead();
+            }
+            if (myLog.isDebugEnabled()) {
+                myLog.debug(e + " after " + workItem.getTime() + " ms for " + fileName
+                    + (workItem.getStopLatency() >= 0 ? String.format(", %.2f ms after stop", workItem.getStopLatency() / 1e6) : ""));
+            }
             return FT_FIELDEMPTY;
         } catch (IOException e) {
             workItem.cleanup();
+            if (event != null) {
+                event.bytes = workItem.getBytesRead();
+            }
             myLog.error(e);
             return FT_FILEERROR;
         } catch (Throwable e) {
@@ -301,13 +1248,29 @@ public abstract class ContentPlugin extends WDXPluginAdapter {
 
     @Override
     public final void contentStopGetValue(String fileName) {
+        Events.StopGetValue event = null;
+        if (Events.ENABLED) {
+            event = new Events.StopGetValue();
+            event.begin();
+        }
         int n = 0;
-        synchronized(pending) {
-            for (WorkItem it: pending.items(fileName)) {
-                it.requestStop();
-                n++;
+        int cancelled = cancelBackground(fileName);
+        for (WorkItem it: pending.items(fileName)) {
+            it.requestStop();
+            n++;
+        }
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.plugin = getClass().getSimpleName();
+                event.file = fileName;
+                event.workItems = n;
+                event.cancelled = cancelled;
+                event.commit();
             }
-            myLog.warn("stopGetValue / " + n + " workItems for \"" + fileName + "\"" + pending);
+        }
+        if (myLog.isDebugEnabled()) {
+            myLog.debug("stopGetValue / " + n + " workItems, " + cancelled + " queued for \"" + fileName + "\"" + pending + "\n" + pending.stopLatencies());
         }
     }
 
@@ -330,6 +1293,10 @@ public abstract class ContentPlugin extends WDXPluginAdapter {
         }
         try {
             ((EditableField)field)._setValue(fileName, fieldValue);
+            ValueCache cache = valueCache;
+            if (cache != null) {
+                cache.invalidate(fileName);
+            }
         } catch (IOException e) {
             log.error(e);
             return FT_FILEERROR;
@@ -338,31 +1305,19 @@ public abstract class ContentPlugin extends WDXPluginAdapter {
     }
 
 
-    public void runTests(String... fileNames) throws IOException {
+    /** Measures all fields on the files given, see {@link TestRunner} for the
+      * options which may be mixed in with the file names; eg from a plugin's
+      * {@code main(String... args)}.
+      */
+    public void runTests(String... args) throws IOException {
         String pluginName = this.getClass().getName();
         // defines at least one field
-        if (this.fields.size() < 0) {
+        if (this.fields.size() < 1) {
             throw new RuntimeException(pluginName + " should define at least 1 field");
         }
-
-        for (String fileName: fileNames) {
-            Path path = Paths.get(fileName);
-            long size = Files.size(path);
-            System.out.println("TEST \"" + fileName + "\" (" + size + " bytes)");
-            for (Field<?> f: fields) {
-                long t = -System.currentTimeMillis();
-                Object result = this.getValue(f, fileName);
-                t += System.currentTimeMillis();
-                double throughput = size / ( (1 << 20) / 1e3 ) / t;
-                System.out.print("\t[" + pluginName + "." + f.name + "]"
-                    + "\t(" + f.getJavaTypeName() + ")"
-                    + String.format("\t%6dms", t)
-                    + String.format("\t%6.1f MB/sec", throughput)
-                    + "\t" + result
-                );
-                System.out.println("\t(" + f.transfer(result, new FieldValue()) + ")");
-            }
-        }
+        new TestRunner(this)
+            .options(args)
+            .run(System.out, TestRunner.fileNames(args));
     }
 
 }
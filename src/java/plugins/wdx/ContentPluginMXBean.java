@@ -0,0 +1,93 @@
+package plugins.wdx;
+
+import java.beans.ConstructorProperties;
+
+
+/** Management interface every {@link ContentPlugin} registers under
+  * {@code plugins.wdx:type=ContentPlugin,name=<simple class name>}, for
+  * watching it live in VisualVM, JMC or jconsole.
+  *
+  * @author Matthias Kling (meisl)
+  */
+public interface ContentPluginMXBean {
+
+    /** A snapshot of one field's {@link FieldStats}; times in nanoseconds.
+      *
+      * @author Matthias Kling (meisl)
+      */
+    public static final class FieldInfo {
+
+        private final String name;
+        private final long calls;
+        private final long cached;
+        private final long delayed;
+        private final long empty;
+        private final long errors;
+        private final long p50;
+        private final long p90;
+        private final long p99;
+        private final long max;
+        private final long bytesRead;
+        private final double megabytesPerSecond;
+
+        @ConstructorProperties({"name", "calls", "cached", "delayed", "empty", "errors",
+            "p50Nanos", "p90Nanos", "p99Nanos", "maxNanos", "bytesRead", "megabytesPerSecond"})
+        public FieldInfo(String name, long calls, long cached, long delayed, long empty, long errors,
+                         long p50, long p90, long p99, long max, long bytesRead, double megabytesPerSecond)
+        {
+            this.name = name;
+            this.calls = calls;
+            this.cached = cached;
+            this.delayed = delayed;
+            this.empty = empty;
+            this.errors = errors;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.max = max;
+            this.bytesRead = bytesRead;
+            this.megabytesPerSecond = megabytesPerSecond;
+        }
+
+        FieldInfo(String name, FieldStats s) {
+            this(name, s.calls(), s.cached(), s.delayed(), s.empty(), s.errors(),
+                s.latency().percentileNanos(50), s.latency().percentileNanos(90), s.latency().percentileNanos(99),
+                s.latency().maxNanos(), s.bytesRead(), s.megabytesPerSecond());
+        }
+
+        public String getName()                 { return name; }
+        public long getCalls()                  { return calls; }
+        public long getCached()                 { return cached; }
+        public long getDelayed()                { return delayed; }
+        public long getEmpty()                  { return empty; }
+        public long getErrors()                 { return errors; }
+        public long getP50Nanos()               { return p50; }
+        public long getP90Nanos()               { return p90; }
+        public long getP99Nanos()               { return p99; }
+        public long getMaxNanos()               { return max; }
+        public long getBytesRead()              { return bytesRead; }
+        public double getMegabytesPerSecond()   { return megabytesPerSecond; }
+    }
+
+    /** One entry per field, in the order they were defined. */
+    FieldInfo[] getFields();
+
+    /** The WorkItems currently being worked on: file, field, unit and time so far. */
+    String[] getPendingWorkItems();
+
+    long getStopsServed();
+
+    long getMaxStopLatencyNanos();
+
+    /** Totals of all reads, see {@link Contents.Stats}. */
+    String getReadStats();
+
+    String getBufferPool();
+
+    /** Empty if the value cache is not enabled. */
+    String getValueCache();
+
+    /** Zeroes the per-field counters and histograms. */
+    void resetFieldStats();
+
+}
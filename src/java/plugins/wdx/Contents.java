@@ -0,0 +1,246 @@
+package plugins.wdx;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.*;
+
+import java.nio.*;
+import java.nio.channels.*;
+
+import plugins.UncheckedIOException;
+
+
+/** The contents of a file as a sequence of ByteBuffers, as returned by
+  * {@link ContentPlugin#contents}; may be iterated over only once.
+  * <p>
+  * A buffer handed out by the iterator is valid until the next call to
+  * {@code hasNext()} or {@code next()}. The underlying file is closed when
+  * the end is reached, or as soon as {@link #stop} is called - from any thread.
+  * The consumer then gets an {@link AsynchronousCloseException} (wrapped in an
+  * {@link UncheckedIOException}) from its next call to the iterator.
+  *
+  * @author Matthias Kling (meisl)
+  */
+public abstract class Contents implements Iterable<ByteBuffer> {
+
+    private static final Log myLog = LogFactory.getLog(Contents.class);
+
+    /** How the bytes are brought in; chosen by {@link ContentPlugin#readStrategyFor}
+      * from the file size.
+      */
+    public enum Strategy {
+        /** one synchronous read into a single pooled buffer ({@link SingleRead}) */
+        SINGLE,
+        /** several asynchronous reads in flight ({@link ReadAhead}) */
+        READ_AHEAD,
+        /** sliding memory-mapped windows ({@link MappedRead}) */
+        MAPPED
+    }
+
+    /** Counters for one or more Contents; all times in nanoseconds.
+      *
+      * @author Matthias Kling (meisl)
+      */
+    public static class Stats {
+
+        private long files;
+        private long reads;
+        private long bytes;
+        private long consumerWaitNanos;
+        private long readerWaitNanos;
+
+        public synchronized long files() {
+            return files;
+        }
+
+        public synchronized long reads() {
+            return reads;
+        }
+
+        public synchronized long bytes() {
+            return bytes;
+        }
+
+        /** Total time the consumer was blocked on a read not yet completed. */
+        public synchronized long consumerWaitNanos() {
+            return consumerWaitNanos;
+        }
+
+        /** Total time all buffers were filled and no read could be issued. */
+        public synchronized long readerWaitNanos() {
+            return readerWaitNanos;
+        }
+
+        synchronized void addFile() {
+            files++;
+        }
+
+        synchronized void addRead() {
+            reads++;
+        }
+
+        synchronized void addBytes(long n) {
+            bytes += n;
+        }
+
+        synchronized void addConsumerWait(long nanos) {
+            consumerWaitNanos += nanos;
+        }
+
+        synchronized void addReaderWait(long nanos) {
+            readerWaitNanos += nanos;
+        }
+
+        public void add(Stats other) {
+            long f, r, b, cw, rw;
+            synchronized (other) {
+                f = other.files;
+                r = other.reads;
+                b = other.bytes;
+                cw = other.consumerWaitNanos;
+                rw = other.readerWaitNanos;
+            }
+            synchronized (this) {
+                files += f;
+                reads += r;
+                bytes += b;
+                consumerWaitNanos += cw;
+                readerWaitNanos += rw;
+            }
+        }
+
+        public synchronized void reset() {
+            files = reads = bytes = consumerWaitNanos = readerWaitNanos = 0;
+        }
+
+        public synchronized String toString() {
+            return String.format("%d files, %d reads, %d bytes, consumer waited %.1f ms, reader waited %.1f ms",
+                files, reads, bytes, consumerWaitNanos / 1e6, readerWaitNanos / 1e6);
+        }
+    }
+
+
+    /* ----- Contents: non-static members ---------------------------------- */
+
+
+    protected final Stats stats = new Stats();
+    private final Stats totals;
+
+    String fileName = null;     // for Events only; set by ContentPlugin.contents()
+
+    private boolean iteratorCalled = false;
+    private boolean isClosed = false;
+    private boolean isStopped = false;
+
+    /** @param totals if non-null, this Contents' {@link #stats} are added
+      *               to it when closed.
+      */
+    protected Contents(Stats totals) {
+        this.totals = totals;
+    }
+
+    public abstract Strategy strategy();
+
+    /** The counters for this Contents alone. */
+    public Stats stats() {
+        return stats;
+    }
+
+    public final Iterator<ByteBuffer> iterator() {
+        synchronized (this) {
+            if (iteratorCalled) {
+                throw new IllegalStateException("iterator() may be called only once!");
+            }
+            iteratorCalled = true;
+        }
+        return newIterator();
+    }
+
+    protected abstract Iterator<ByteBuffer> newIterator();
+
+    protected final synchronized boolean isClosed() {
+        return isClosed;
+    }
+
+    public final synchronized boolean isStopped() {
+        return isStopped;
+    }
+
+    /** Abandons reading: cancels any reads in flight by closing the file and
+      * hands back all buffers not currently held by the consumer (that one
+      * goes back on its next call to the iterator).
+      * Has no effect if the end has been reached already.
+      */
+    public final void stop() {
+        synchronized (this) {
+            if (isClosed) {
+                return;
+            }
+            isStopped = true;
+        }
+        close();
+    }
+
+    /* To be called by iterators first thing in hasNext(), after having
+     * given back the buffer held by the consumer.
+     */
+    protected final void checkStopped() throws UncheckedIOException {
+        if (isStopped()) {
+            throw new UncheckedIOException(new AsynchronousCloseException());
+        }
+    }
+
+    /** Closes the file and hands back any buffers; has no effect if already closed. */
+    protected final void close() {
+        synchronized (this) {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+        }
+        try {
+            doClose();
+        } catch (Exception e) {
+            myLog.error(e);
+        }
+        stats.addFile();
+        if (totals != null) {
+            totals.add(stats);
+        }
+    }
+
+    protected abstract void doClose() throws Exception;
+
+    /* Starts timing a read for its JFR event; null if there's no JFR. */
+    final Events.Read beginRead() {
+        if (!Events.ENABLED) {
+            return null;
+        }
+        Events.Read event = new Events.Read();
+        event.begin();
+        return event;
+    }
+
+    /* Commits the event from beginRead(), if any and if recorded. */
+    final void endRead(Events.Read event, long position, long bytes, Throwable failure) {
+        if (event == null) {
+            return;
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.file = fileName;
+            event.strategy = strategy().name();
+            event.position = position;
+            event.bytes = bytes;
+            event.outcome = (failure == null) ? "ok" : failure.toString();
+            event.commit();
+        }
+    }
+
+    @Override
+    public void finalize() throws Throwable {
+        close(); // has no effect if already closed
+    }
+
+}
@@ -0,0 +1,112 @@
+package plugins.wdx;
+
+import jdk.jfr.*;
+
+import static plugins.wdx.FieldValue.*;
+
+
+/** JDK Flight Recorder events emitted by {@link ContentPlugin} and {@link Contents},
+  * for matching plugin stalls against GC and disk activity in JMC. They cost next
+  * to nothing unless a recording is running.
+  * <p>
+  * The event classes are only touched if {@link #ENABLED}, so plugins still
+  * run on JREs without {@code jdk.jfr}.
+  *
+  * @author Matthias Kling (meisl)
+  */
+final class Events {
+
+    /** Whether the running JRE has {@code jdk.jfr}. */
+    static final boolean ENABLED = isAvailable();
+
+    private static boolean isAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event", false, Events.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    private Events() {
+    }
+
+    static String outcome(int result) {
+        switch (result) {
+            case FT_DELAYED:        return "delayed";
+            case FT_FIELDEMPTY:     return "empty";
+            case FT_FILEERROR:      return "file error";
+            case FT_NOSUCHFIELD:    return "no such field";
+            default:                return "value";
+        }
+    }
+
+    @Name("plugins.wdx.GetValue")
+    @Label("Get Value")
+    @Description("One call of contentGetValue")
+    @Category({"tc_java", "WDX"})
+    @StackTrace(false)
+    static final class GetValue extends Event {
+        @Label("Plugin")
+        String plugin;
+
+        @Label("Field")
+        String field;
+
+        @Label("File")
+        String file;
+
+        @Label("Delay If Slow")
+        boolean delayIfSlow;
+
+        @Label("Outcome")
+        String outcome;
+
+        @Label("Bytes Read")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("plugins.wdx.StopGetValue")
+    @Label("Stop Get Value")
+    @Description("One call of contentStopGetValue")
+    @Category({"tc_java", "WDX"})
+    @StackTrace(false)
+    static final class StopGetValue extends Event {
+        @Label("Plugin")
+        String plugin;
+
+        @Label("File")
+        String file;
+
+        @Label("Work Items Stopped")
+        int workItems;
+
+        @Label("Queued Cancelled")
+        int cancelled;
+    }
+
+    @Name("plugins.wdx.Read")
+    @Label("Contents Read")
+    @Description("One read (or mapping) of a buffer by Contents")
+    @Category({"tc_java", "WDX"})
+    @StackTrace(false)
+    static final class Read extends Event {
+        @Label("File")
+        String file;
+
+        @Label("Strategy")
+        String strategy;
+
+        @Label("Position")
+        long position;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        @Label("Outcome")
+        String outcome;
+    }
+
+}
@@ -0,0 +1,116 @@
+package plugins.wdx;
+
+
+import java.nio.ByteBuffer;
+
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+/** Feeds one buffer to several {@link Tap}s at once, each on its own core: all
+  * but the first Tap are handed to a shared pool of daemon threads, the first
+  * one runs on the calling thread. Every Tap gets its own view of the shared
+  * buffer (position and limit are independent, the bytes are the same), and
+  * {@link #update} only returns when the last Tap is done with it - so the
+  * buffer may be released (or refilled) right after, and each Tap still sees
+  * all buffers in file order.
+  * <p>
+  * Feeding several expensive Taps (eg. digests) this way costs about as much
+  * as the slowest of them rather than the sum.
+  *
+  * @author Matthias Kling (meisl)
+  */
+public final class FanOut {
+
+    /** Number of threads feeding Taps in parallel (besides the calling thread);
+      * may be overridden by system property {@code plugins.wdx.fanOut.threads}.
+      * If 0, Taps are always fed one after the other.
+      */
+    public static final int DEFAULT_THREADS = Integer.getInteger("plugins.wdx.fanOut.threads",
+        Runtime.getRuntime().availableProcessors() - 1);
+
+    /** Buffers with fewer bytes than this are fed to the Taps one after the other,
+      * as the hand-over would cost more than it saves; may be overridden by system
+      * property {@code plugins.wdx.fanOut.minBytes}.
+      */
+    public static final int DEFAULT_MIN_BYTES = Integer.getInteger("plugins.wdx.fanOut.minBytes", 1 << 14);
+
+    private static final ExecutorService executor = (DEFAULT_THREADS < 1) ? null
+        : new ThreadPoolExecutor(DEFAULT_THREADS, DEFAULT_THREADS, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                private int n = 0;
+                public synchronized Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "FanOut-" + n++);
+                    t.setDaemon(true);
+                    return t;
+                }
+            }) {{
+                allowCoreThreadTimeOut(true);
+            }};
+
+    private FanOut() {
+    }
+
+    /** Feeds the remaining bytes of {@code buf} to each of {@code taps} (in
+      * parallel if worthwhile), returning when all are done; {@code buf}'s
+      * position is then at its limit. Any exception thrown by a Tap is
+      * rethrown here, after all others are done.
+      */
+    public static void update(List<? extends Tap<?>> taps, ByteBuffer buf) {
+        int n = taps.size();
+        if ((n < 2) || (executor == null) || (buf.remaining() < DEFAULT_MIN_BYTES)) {
+            int pos = buf.position();
+            for (Tap<?> tap: taps) {
+                buf.position(pos);
+                tap.update(buf);
+            }
+            buf.position(buf.limit());
+            return;
+        }
+        final CountDownLatch done = new CountDownLatch(n - 1);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        for (int i = 1; i < n; i++) {
+            final Tap<?> tap = taps.get(i);
+            final ByteBuffer view = buf.duplicate();
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        tap.update(view);
+                    } catch (RuntimeException | Error e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        try {
+            taps.get(0).update(buf.duplicate());
+        } catch (RuntimeException | Error e) {
+            failure.compareAndSet(null, e);
+        }
+        // the others must be done with buf before it goes back, even if we're interrupted:
+        boolean isInterrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                isInterrupted = true;
+            }
+        }
+        if (isInterrupted) {
+            Thread.currentThread().interrupt();
+        }
+        buf.position(buf.limit());
+        Throwable e = failure.get();
+        if (e instanceof RuntimeException) {
+            throw (RuntimeException)e;
+        } else if (e != null) {
+            throw (Error)e;
+        }
+    }
+
+}
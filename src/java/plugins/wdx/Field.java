@@ -59,6 +59,11 @@ public abstract class Field<T> {
     public final int type;
     public final Class<T> javaType;
 
+    /** When TC last asked for this field (System.currentTimeMillis()), 0 if never. */
+    volatile long lastRequested = 0;
+
+    final FieldStats stats = new FieldStats();
+
     protected Field(String name, int type, Class<T> javaType) {
         this.name = name;
         this.type = type;
@@ -72,6 +77,31 @@ public abstract class Field<T> {
         return true;
     }
 
+    /** The counters for TC's calls for this field. */
+    public FieldStats stats() {
+        return stats;
+    }
+
+    /** Whether this field's values may be kept in the plugin's {@link ValueCache};
+      * override to return false for values that may change without the file's
+      * size or last-modified time changing.
+      */
+    public boolean isCacheable() {
+        return true;
+    }
+
+    /** Returns a fresh {@link Tap} computing this field's value for the
+      * specified file from its contents, or null if the value need not (or
+      * cannot) be computed that way - eg because it's known already.
+      * <p>
+      * Fields returning a Tap here take part in reads started by
+      * {@link ContentPlugin#valueFromContents} for other fields, as long as
+      * TC has asked for them recently.
+      */
+    protected Tap<T> tap(String fileName) throws IOException {
+        return null;
+    }
+
     int transfer(Object value, FieldValue fieldValue) {
         if (value == null) {
             return FT_FIELDEMPTY;
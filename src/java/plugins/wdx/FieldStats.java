@@ -0,0 +1,100 @@
+package plugins.wdx;
+
+import java.util.concurrent.atomic.*;
+
+import static plugins.wdx.FieldValue.*;
+
+
+/** Counters for one {@link Field}, as updated by {@link ContentPlugin#contentGetValue}
+  * and exposed via {@link ContentPluginMXBean}.
+  *
+  * @author Matthias Kling (meisl)
+  */
+public class FieldStats {
+
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong cached = new AtomicLong();
+    private final AtomicLong delayed = new AtomicLong();
+    private final AtomicLong empty = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong readNanos = new AtomicLong();
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    /* One call from TC, which returned result after nanos. */
+    void call(int result, long nanos) {
+        calls.incrementAndGet();
+        switch (result) {
+            case FT_DELAYED:    delayed.incrementAndGet(); break;
+            case FT_FIELDEMPTY: empty.incrementAndGet(); break;
+            case FT_FILEERROR:  errors.incrementAndGet(); break;
+            default: break;
+        }
+        latency.record(nanos);
+    }
+
+    void cacheHit() {
+        cached.incrementAndGet();
+    }
+
+    /* A computation (on TC's thread or in the background) that read bytes in nanos. */
+    void read(long bytes, long nanos) {
+        if (bytes > 0) {
+            bytesRead.addAndGet(bytes);
+            readNanos.addAndGet(nanos);
+        }
+    }
+
+    public long calls() {
+        return calls.get();
+    }
+
+    /** Calls answered from the {@link ValueCache}. */
+    public long cached() {
+        return cached.get();
+    }
+
+    public long delayed() {
+        return delayed.get();
+    }
+
+    public long empty() {
+        return empty.get();
+    }
+
+    public long errors() {
+        return errors.get();
+    }
+
+    public long bytesRead() {
+        return bytesRead.get();
+    }
+
+    /** Bytes read per second of the computations that read them, in MB (2^20 bytes). */
+    public double megabytesPerSecond() {
+        long nanos = readNanos.get();
+        return (nanos == 0) ? 0.0 : bytesRead.get() / (double)(1 << 20) / (nanos / 1e9);
+    }
+
+    /** The time TC's calls took, in nanoseconds. */
+    public LatencyHistogram latency() {
+        return latency;
+    }
+
+    public void reset() {
+        calls.set(0);
+        cached.set(0);
+        delayed.set(0);
+        empty.set(0);
+        errors.set(0);
+        bytesRead.set(0);
+        readNanos.set(0);
+        latency.reset();
+    }
+
+    public String toString() {
+        return String.format("%d calls (%d cached, %d delayed, %d empty, %d errors), %s, %d bytes read at %.1f MB/s",
+            calls(), cached(), delayed(), empty(), errors(), latency, bytesRead(), megabytesPerSecond());
+    }
+
+}
@@ -0,0 +1,108 @@
+package plugins.wdx;
+
+import java.util.concurrent.atomic.*;
+
+
+/** Counts durations (in nanoseconds) in log-linear buckets: exact below 16 ns,
+  * above that 8 buckets per power of two, ie percentiles are accurate to
+  * within 12.5%. Recording is lock-free and allocation-free.
+  *
+  * @author Matthias Kling (meisl)
+  */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int LINEAR = 2 * SUB_BUCKETS;     // values below are counted exactly
+    private static final int BUCKETS = LINEAR + (63 - SUB_BITS - 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    static int bucketOf(long nanos) {
+        if (nanos < LINEAR) {
+            return (int)Math.max(nanos, 0);
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(nanos);    // >= SUB_BITS + 1
+        int sub = (int)(nanos >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR + (exp - SUB_BITS - 1) * SUB_BUCKETS + sub;
+    }
+
+    /* The largest value counted in the bucket. */
+    static long upperBoundOf(int bucket) {
+        if (bucket < LINEAR) {
+            return bucket;
+        }
+        int exp = (bucket - LINEAR) / SUB_BUCKETS + SUB_BITS + 1;
+        long sub = (bucket - LINEAR) % SUB_BUCKETS;
+        long lower = (1L << exp) | (sub << (exp - SUB_BITS));
+        return lower + (1L << (exp - SUB_BITS)) - 1;
+    }
+
+    public void record(long nanos) {
+        counts.incrementAndGet(bucketOf(nanos));
+        count.incrementAndGet();
+        total.addAndGet(nanos);
+        long m;
+        do {
+            m = max.get();
+        } while ((nanos > m) && !max.compareAndSet(m, nanos));
+    }
+
+    public long count() {
+        return count.get();
+    }
+
+    public long totalNanos() {
+        return total.get();
+    }
+
+    public long maxNanos() {
+        return max.get();
+    }
+
+    public long meanNanos() {
+        long n = count();
+        return (n == 0) ? 0 : totalNanos() / n;
+    }
+
+    /** The smallest bucket bound at or below which at least {@code p} percent
+      * of the values lie (but never more than {@link #maxNanos}); 0 if empty.
+      */
+    public long percentileNanos(double p) {
+        long n = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            n += snapshot[i] = counts.get(i);
+        }
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (long)Math.ceil(n * p / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if ((seen >= rank) && (seen > 0)) {
+                return Math.min(upperBoundOf(i), maxNanos());
+            }
+        }
+        return maxNanos();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        total.set(0);
+        max.set(0);
+    }
+
+    public String toString() {
+        return String.format("n=%d, p50=%.3f ms, p90=%.3f ms, p99=%.3f ms, max=%.3f ms",
+            count(), percentileNanos(50) / 1e6, percentileNanos(90) / 1e6, percentileNanos(99) / 1e6, maxNanos() / 1e6);
+    }
+
+}
@@ -0,0 +1,219 @@
+package plugins.wdx;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.*;
+
+import java.lang.reflect.Method;
+
+import java.util.*;
+
+import java.nio.*;
+import java.nio.channels.*;
+
+import plugins.UncheckedIOException;
+
+
+/** Contents of a (large) file read through sliding read-only memory-mapped
+  * windows of {@code windowSize} bytes each, so consumers read straight from
+  * the page cache without any copying into buffers of our own.
+  * <p>
+  * Windows are mapped until EOF, not just up to the size the file had when
+  * opened: when that's reached, the file's size is checked again.
+  * <p>
+  * Each window is handed out in slices of {@code sliceSize} bytes, so that
+  * a {@link #stop} is noticed after at most that many bytes.
+  * <p>
+  * A window is unmapped as soon as the consumer is done with its last slice,
+  * or when closed - not when garbage collected, which on Windows would keep the
+  * file locked against delete, rename and overwrite long after. This takes
+  * {@code sun.misc.Unsafe.invokeCleaner} (Java 9+); without it ({@link #CAN_UNMAP}
+  * is false), {@link ContentPlugin#readStrategyFor} doesn't choose MAPPED.
+  *
+  * @author Matthias Kling (meisl)
+  */
+public class MappedRead extends Contents {
+
+    private static final Log myLog = LogFactory.getLog(MappedRead.class);
+
+    private static final Object UNSAFE = unsafe();
+    private static final Method INVOKE_CLEANER = invokeCleaner();
+
+    /** Whether mapped windows can be unmapped deterministically in the running JRE. */
+    public static final boolean CAN_UNMAP = (INVOKE_CLEANER != null);
+
+    private static Object unsafe() {
+        try {
+            java.lang.reflect.Field f = Class.forName("sun.misc.Unsafe").getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            return f.get(null);
+        } catch (Exception | LinkageError e) {
+            return null;
+        }
+    }
+
+    private static Method invokeCleaner() {
+        if (UNSAFE == null) {
+            return null;
+        }
+        try {
+            return UNSAFE.getClass().getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (Exception | LinkageError e) {
+            return null;
+        }
+    }
+
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        } catch (Exception e) {
+            myLog.error("unmapping: " + e);
+        }
+    }
+
+    private final FileChannel channel;
+    private final long start;
+    private final long size;    // when opened; the end is checked again when reached
+    private final long windowSize;
+    private final int sliceSize;
+
+    private MappedByteBuffer window = null;     // guarded by this
+    private boolean isHeld = false;             // whether the consumer holds a slice of window; guarded by this
+
+    public MappedRead(FileChannel channel, long windowSize, int sliceSize, Stats totals) throws IOException {
+        this(channel, 0, windowSize, sliceSize, totals);
+    }
+
+    /** Contents from {@code start} on. */
+    public MappedRead(FileChannel channel, long start, long windowSize, int sliceSize, Stats totals) throws IOException {
+        super(totals);
+        if (start < 0) {
+            throw new IllegalArgumentException("start must be >= 0: " + start);
+        }
+        if ((windowSize < 1) || (windowSize > Integer.MAX_VALUE)) {
+            throw new IllegalArgumentException("windowSize must be in [1, " + Integer.MAX_VALUE + "]: " + windowSize);
+        }
+        if (sliceSize < 1) {
+            throw new IllegalArgumentException("sliceSize must be >= 1: " + sliceSize);
+        }
+        if (!CAN_UNMAP) {
+            throw new UnsupportedOperationException("can't unmap in this JRE");
+        }
+        this.channel = channel;
+        this.start = start;
+        this.size = channel.size();
+        this.windowSize = windowSize;
+        this.sliceSize = sliceSize;
+    }
+
+    public Strategy strategy() {
+        return Strategy.MAPPED;
+    }
+
+    protected Iterator<ByteBuffer> newIterator() {
+        return new Iterator<ByteBuffer>() {
+
+            long position = start;
+            long end = size;
+
+            @Override
+            public boolean hasNext() throws UncheckedIOException {
+                boolean hasWindow;
+                synchronized (MappedRead.this) {
+                    isHeld = false; // the consumer is done with its slice
+                    if ((window != null) && (isClosed() || !window.hasRemaining())) {
+                        unmap(window);
+                        window = null;
+                    }
+                    hasWindow = (window != null);
+                }
+                checkStopped();
+                if (hasWindow) {
+                    return true;
+                }
+                if (position >= end) {
+                    try {
+                        end = channel.size();   // grown meanwhile?
+                    } catch (IOException e) {
+                        close();
+                        checkStopped();
+                        throw new UncheckedIOException(e);
+                    }
+                    if (position >= end) {
+                        close();
+                        return false;
+                    }
+                }
+                long n = Math.min(windowSize, end - position);
+                MappedByteBuffer mapped;
+                Events.Read event = beginRead();
+                try {
+                    long t = System.nanoTime();
+                    mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, n);
+                    stats.addConsumerWait(System.nanoTime() - t);
+                    endRead(event, position, n, null);
+                } catch (IOException e) {
+                    endRead(event, position, 0, e);
+                    close();
+                    checkStopped();
+                    throw new UncheckedIOException(e);
+                }
+                synchronized (MappedRead.this) {
+                    if (!isClosed()) {
+                        window = mapped;
+                        mapped = null;
+                    }
+                }
+                if (mapped != null) {   // stopped while mapping
+                    unmap(mapped);
+                    checkStopped();
+                    throw new UncheckedIOException(new ClosedChannelException());
+                }
+                stats.addRead();
+                position += n;
+                return true;
+            }
+
+            @Override
+            public ByteBuffer next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                ByteBuffer result;
+                synchronized (MappedRead.this) {
+                    if (window == null) {   // stopped just now
+                        checkStopped();
+                        throw new NoSuchElementException();
+                    }
+                    result = window.duplicate();
+                    int end = Math.min(window.position() + sliceSize, window.limit());
+                    result.limit(end);
+                    window.position(end);
+                    isHeld = true;
+                }
+                stats.addBytes(result.remaining());
+                return result;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /* The window is unmapped here unless the consumer holds a slice of it (then
+     * on its next call to the iterator).
+     */
+    protected void doClose() throws IOException {
+        channel.close();
+        synchronized (this) {
+            if ((window != null) && !isHeld) {
+                unmap(window);
+                window = null;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,331 @@
+package plugins.wdx;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import java.nio.*;
+import java.nio.channels.*;
+
+import plugins.UncheckedIOException;
+
+
+/** Iterates over the contents of a file by keeping up to {@code depth}
+  * asynchronous reads in flight, into buffers borrowed from a {@link BufferPool}.
+  * <p>
+  * A buffer is re-used for reading further ahead as soon as the consumer
+  * calls {@code hasNext()} or {@code next()} again. Thus with a depth of n
+  * there are at most n-1 reads outstanding while the consumer works on a
+  * buffer. All buffers are handed back to the pool when the end is reached,
+  * the channel fails or reading is {@link #stop stop}ped.
+  * <p>
+  * The time the consumer spent waiting for data and the time the reader
+  * spent waiting for a free buffer are recorded in {@link Contents.Stats},
+  * which tells whether depth or buffer size should be raised (consumer waits)
+  * or whether the disk is faster than the consumer anyway (reader waits).
+  * <p>
+  * Reading goes on until EOF, not just up to the size the file had when opened:
+  * reads are issued past it, too, and the contents end with the first buffer
+  * that couldn't be filled - so a file still growing (a log, a download) is read
+  * up to where it ended at that moment, just like with sequential reads.
+  *
+  * @author Matthias Kling (meisl)
+  */
+public class ReadAhead extends Contents {
+
+    private static final Log myLog = LogFactory.getLog(ReadAhead.class);
+
+    private final AsynchronousFileChannel channel;
+    private final int depth;
+    private final int bufferSize;
+    private final BufferPool pool;
+
+    /** Creates a ReadAhead on the (open) {@code channel}; the channel is
+      * closed when the end is reached.
+      *
+      * @param totals if non-null, this ReadAhead's {@link #stats} are added
+      *               to it when the channel is closed.
+      */
+    public ReadAhead(AsynchronousFileChannel channel, int depth, BufferPool pool, Stats totals) throws IOException {
+        this(channel, 0, depth, pool, totals);
+    }
+
+    /** Same as {@link #ReadAhead(AsynchronousFileChannel, int, BufferPool, Stats)},
+      * but reading from {@code start} on.
+      */
+    public ReadAhead(AsynchronousFileChannel channel, long start, int depth, BufferPool pool, Stats totals) throws IOException {
+        super(totals);
+        if (depth < 1) {
+            throw new IllegalArgumentException("depth must be >= 1: " + depth);
+        }
+        if (start < 0) {
+            throw new IllegalArgumentException("start must be >= 0: " + start);
+        }
+        this.nextPosition = start;
+        this.channel = channel;
+        this.depth = depth;
+        this.pool = pool;
+        this.bufferSize = pool.bufferSize();
+    }
+
+    public Strategy strategy() {
+        return Strategy.READ_AHEAD;
+    }
+
+    protected Iterator<ByteBuffer> newIterator() {
+        return new Iterator<ByteBuffer>() {
+
+            int head = 0;               // slot to be handed out next
+            boolean isReady = false;
+            boolean isLast = false;     // whether the slot handed out last wasn't filled (EOF)
+            boolean isFinished = false;
+
+            {
+                Slot[] slots = new Slot[depth];
+                for (int i = 0; i < depth; i++) {
+                    slots[i] = new Slot(pool.acquire());
+                }
+                synchronized (ReadAhead.this) {
+                    ReadAhead.this.slots = slots;
+                }
+                for (Slot slot: slots) {
+                    slot.start();
+                }
+            }
+
+            @Override
+            public boolean hasNext() throws UncheckedIOException {
+                if (isFinished) {
+                    return false;
+                }
+                if (isStopped()) {
+                    finish();
+                    checkStopped();
+                }
+                if (isReady) {
+                    return true;
+                }
+                if (isLast) {
+                    finish();
+                    return false;
+                }
+                synchronized (ReadAhead.this) {
+                    if (held != null) {
+                        held.start();
+                        held = null;
+                    }
+                }
+                try {
+                    Slot slot = slots[head];
+                    int bytesRead = slot.await();
+                    if (bytesRead < 0) {
+                        finish();
+                        return false;
+                    }
+                    slot.completeShortRead(bytesRead);
+                    isLast = slot.buf.hasRemaining();
+                    slot.buf.flip();
+                    slot.buf.mark();
+                    return isReady = true;
+                } catch (IOException e) {
+                    finish();
+                    checkStopped();
+                    myLog.error("contents:" + e);
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            @Override
+            public ByteBuffer next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Slot slot = slots[head];    // == held
+                head = (head + 1) % depth;
+                isReady = false;
+                return slot.buf;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+            private void finish() {
+                isFinished = true;
+                synchronized (ReadAhead.this) {
+                    if (held != null) {
+                        held.release();
+                        held = null;
+                    }
+                }
+                close();
+            }
+        };
+    }
+
+    protected void doClose() throws IOException {
+        channel.close();
+        synchronized (this) {
+            if (slots != null) {
+                for (Slot slot: slots) {
+                    if (slot.done && (slot != held)) {
+                        slot.release();
+                    } // else: released in onDone(), or by the consumer
+                }
+            }
+        }
+    }
+
+
+    /* ----- ReadAhead: pipeline state ------------------------------------- */
+
+
+    private Slot[] slots = null;        // guarded by this; created by the iterator
+    private Slot held = null;           // guarded by this; slot currently handed out to the consumer
+    private long nextPosition;          // guarded by this; file position for the next read to be issued
+    private int inFlight = 0;           // guarded by this
+    private long stallSince = 0;        // guarded by this; 0 if reader not stalled
+
+    /** One buffer together with the read that fills it. */
+    private final class Slot implements CompletionHandler<Integer, Void> {
+
+        ByteBuffer buf;
+        long position;
+        int bytesRead;
+        Throwable failure;
+        boolean done;
+        Events.Read event;
+
+        Slot(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        void start() {
+            synchronized (ReadAhead.this) {
+                if (isClosed()) {
+                    release();
+                    bytesRead = -1;
+                    done = true;
+                    return;
+                }
+                buf.clear();
+                position = nextPosition;
+                nextPosition += bufferSize;
+                failure = null;
+                if (stallSince != 0) {
+                    stats.addReaderWait(System.nanoTime() - stallSince);
+                    stallSince = 0;
+                }
+                done = false;
+                inFlight++;
+                event = beginRead();
+            }
+            channel.read(buf, position, null, this);
+        }
+
+        public void completed(Integer result, Void attachment) {
+            synchronized (ReadAhead.this) {
+                bytesRead = result;
+                onDone();
+            }
+        }
+
+        public void failed(Throwable exc, Void attachment) {
+            synchronized (ReadAhead.this) {
+                failure = exc;
+                onDone();
+            }
+        }
+
+        // caller must hold the lock on ReadAhead.this
+        void release() {
+            pool.release(buf);
+            buf = null;
+        }
+
+        // caller must hold the lock on ReadAhead.this
+        private void onDone() {
+            endRead(event, position, (failure == null) ? Math.max(0, bytesRead) : 0, failure);
+            event = null;
+            done = true;
+            inFlight--;
+            if (isClosed()) {
+                release();
+            } else if ((inFlight == 0) && (bytesRead == buf.capacity())) {  // not at EOF yet
+                stallSince = System.nanoTime();
+            }
+            ReadAhead.this.notifyAll();
+        }
+
+        /* Waits for the read to complete; if successful, this becomes the
+         * slot held by the consumer.
+         */
+        int await() throws IOException {
+            synchronized (ReadAhead.this) {
+                if (!done) {
+                    long t = System.nanoTime();
+                    try {
+                        while (!done) {
+                            ReadAhead.this.wait();
+                        }
+                    } catch (InterruptedException e) {
+                        myLog.error("ReadAhead.await() threw " + e);
+                        throw new AsynchronousCloseException();
+                    } finally {
+                        stats.addConsumerWait(System.nanoTime() - t);
+                    }
+                }
+                if (failure != null) {
+                    if (failure instanceof IOException) {
+                        throw (IOException)failure;
+                    }
+                    throw new RuntimeException(failure);
+                }
+                if (buf == null) {  // stopped meanwhile
+                    throw new AsynchronousCloseException();
+                }
+                if (bytesRead >= 0) {
+                    stats.addRead();
+                    held = this;
+                }
+                return bytesRead;
+            }
+        }
+
+        /* Positional reads may return less than requested before EOF;
+         * fill up the rest synchronously to keep the buffers contiguous.
+         * A buffer left not full is at EOF.
+         */
+        void completeShortRead(int bytesRead) throws IOException {
+            long end = position + buf.capacity();
+            long pos = position + bytesRead;
+            while (pos < end) {
+                int n;
+                try {
+                    n = channel.read(buf, pos).get();
+                } catch (InterruptedException e) {
+                    myLog.error("Future.get() threw " + e);
+                    throw new AsynchronousCloseException();
+                } catch (ExecutionException e) {
+                    Throwable inner = e.getCause();
+                    if (inner instanceof IOException) {
+                        throw (IOException)inner;
+                    }
+                    throw new RuntimeException(inner);
+                }
+                if (n <= 0) {
+                    break;
+                }
+                stats.addRead();
+                pos += n;
+            }
+            stats.addBytes(pos - position);
+        }
+    }
+
+}
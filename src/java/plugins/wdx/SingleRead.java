@@ -0,0 +1,155 @@
+package plugins.wdx;
+
+import java.io.*;
+
+import java.util.*;
+
+import java.nio.*;
+import java.nio.channels.*;
+
+import plugins.UncheckedIOException;
+
+
+/** Contents of a file (from a start position on) small enough to fit into one
+  * pooled buffer, brought in by a single synchronous read on first {@code hasNext()}.
+  * The buffer goes back to the pool at the end.
+  * <p>
+  * Reading goes on until EOF: if the file has grown past the buffer meanwhile,
+  * the rest is read the same way, a buffer-full at a time.
+  *
+  * @author Matthias Kling (meisl)
+  */
+public class SingleRead extends Contents {
+
+    private final FileChannel channel;
+    private final long start;
+    private final BufferPool pool;
+    private ByteBuffer buf;         // guarded by this
+    private boolean inUse = false;  // guarded by this; whether buf is owned by the consumer
+
+    /** @throws IllegalArgumentException if the file does not fit into one of
+      *         {@code pool}'s buffers.
+      */
+    public SingleRead(FileChannel channel, BufferPool pool, Stats totals) throws IOException {
+        this(channel, 0, pool, totals);
+    }
+
+    /** Contents from {@code start} on.
+      * @throws IllegalArgumentException if the bytes from {@code start} on do not
+      *         fit into one of {@code pool}'s buffers.
+      */
+    public SingleRead(FileChannel channel, long start, BufferPool pool, Stats totals) throws IOException {
+        super(totals);
+        if (start < 0) {
+            throw new IllegalArgumentException("start must be >= 0: " + start);
+        }
+        if (channel.size() - start > pool.bufferSize()) {
+            throw new IllegalArgumentException("file too large for a single read: " + (channel.size() - start) + " > " + pool.bufferSize());
+        }
+        this.channel = channel;
+        this.start = start;
+        this.pool = pool;
+    }
+
+    public Strategy strategy() {
+        return Strategy.SINGLE;
+    }
+
+    protected Iterator<ByteBuffer> newIterator() {
+        return new Iterator<ByteBuffer>() {
+
+            long position = start;      // of the next read
+            boolean isEof = false;
+            boolean isReady = false;
+
+            @Override
+            public boolean hasNext() throws UncheckedIOException {
+                if (isReady && !isStopped()) {
+                    return true;
+                }
+                isReady = false;
+                giveBack();
+                checkStopped();
+                if (isEof) {
+                    close();
+                    return false;
+                }
+                ByteBuffer b;
+                synchronized (SingleRead.this) {
+                    if (buf == null) {
+                        buf = pool.acquire();
+                    }
+                    b = buf;
+                    inUse = true;
+                }
+                b.clear();
+                Events.Read event = beginRead();
+                try {
+                    long t = System.nanoTime();
+                    while (b.hasRemaining()) {
+                        if (channel.read(b, position + b.position()) < 0) {
+                            isEof = true;
+                            break;
+                        }
+                        stats.addRead();
+                    }
+                    stats.addConsumerWait(System.nanoTime() - t);
+                    b.flip();
+                    b.mark();
+                    stats.addBytes(b.remaining());
+                    endRead(event, position, b.remaining(), null);
+                    position += b.remaining();
+                } catch (IOException e) {
+                    endRead(event, position, b.position(), e);
+                    giveBack();
+                    close();
+                    checkStopped();
+                    throw new UncheckedIOException(e);
+                }
+                if (!b.hasRemaining()) {
+                    giveBack();
+                    close();
+                    return false;
+                }
+                return isReady = true;
+            }
+
+            @Override
+            public ByteBuffer next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                isReady = false;
+                synchronized (SingleRead.this) {
+                    return buf;
+                }
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+            private void giveBack() {
+                synchronized (SingleRead.this) {
+                    inUse = false;
+                    if (isClosed()) {
+                        pool.release(buf);
+                        buf = null;
+                    }
+                }
+            }
+        };
+    }
+
+    protected void doClose() throws IOException {
+        channel.close();
+        synchronized (this) {
+            if (!inUse) {
+                pool.release(buf);
+                buf = null;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,27 @@
+package plugins.wdx;
+
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+
+
+/** Computes a field value from a file's contents as they go by, so that
+  * several fields can be served by one read of the file;
+  * see {@link Field#tap} and {@link ContentPlugin#valueFromContents}.
+  *
+  * @author Matthias Kling (meisl)
+  */
+public interface Tap<T> {
+
+    /** Consumes the remaining bytes of {@code buf}, in file order. The buffer
+      * must neither be kept nor modified; it is only valid during the call.
+      * Successive calls may come from different threads (see {@link FanOut}),
+      * but never concurrently.
+      */
+    void update(ByteBuffer buf);
+
+    /** Called once after the last {@link #update}; returns the value. */
+    T finish() throws IOException;
+
+}
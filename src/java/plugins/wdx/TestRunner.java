@@ -0,0 +1,439 @@
+package plugins.wdx;
+
+import java.io.*;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import java.nio.file.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+
+/** Measures the fields of a {@link ContentPlugin} on a set of files: each
+  * (file, field) is computed {@code warmup} times unmeasured, then {@code runs}
+  * times measured, either serially or on several threads at once. Reports
+  * p50/p99/mean/max time, MB/s (at p50) and bytes allocated per value, as text
+  * and optionally as CSV or JSON, for diffing runs.
+  * <p>
+  * Values are computed via {@link Field#getValue} directly, ie not from the
+  * plugin's {@link ValueCache}, and with its own caches (eg Hashes.WDX's
+  * alternate data streams) {@link ContentPlugin#setCacheBypassed bypassed} -
+  * else all but the first run would measure cache lookups. With {@code --cached}
+  * those are used, to measure just that.
+  * <p>
+  * {@link ContentPlugin#runTests} parses the options from the command line:
+  * <pre>
+  *   --warmup=N     unmeasured runs per (file, field), default {@value #DEFAULT_WARMUP}
+  *   --runs=N       measured runs per (file, field), default {@value #DEFAULT_RUNS}
+  *   --threads=N    1: serial (default), more: that many threads at once
+  *   --cached       use the plugin's own caches (bypassed by default)
+  *   --csv=FILE     also write results as CSV ("-" for stdout)
+  *   --json=FILE    also write results as JSON ("-" for stdout)
+  * </pre>
+  *
+  * @author Matthias Kling (meisl)
+  */
+public class TestRunner {
+
+    public static final int DEFAULT_WARMUP = 2;
+    public static final int DEFAULT_RUNS = 10;
+
+    /** Returns the arguments which are not options, ie the file names. */
+    public static List<String> fileNames(String... args) {
+        List<String> result = new ArrayList<>();
+        for (String arg: args) {
+            if (!arg.startsWith("--")) {
+                result.add(arg);
+            }
+        }
+        return result;
+    }
+
+    /** The measurements for one field on one file; times in nanoseconds.
+      *
+      * @author Matthias Kling (meisl)
+      */
+    public static final class Result {
+
+        public final String fileName;
+        public final long size;
+        public final Field<?> field;
+
+        private final long[] samples;
+        private int n = 0;              // guarded by this
+        private int errors = 0;         // guarded by this
+        private long allocated = 0;     // guarded by this; -1 if not supported
+        private Object value;           // guarded by this; the last one
+        private boolean isSorted = false;
+
+        Result(String fileName, long size, Field<?> field, int runs) {
+            this.fileName = fileName;
+            this.size = size;
+            this.field = field;
+            this.samples = new long[runs];
+        }
+
+        synchronized void add(long nanos, long allocatedBytes, Object value) {
+            samples[n++] = nanos;
+            if ((allocated < 0) || (allocatedBytes < 0)) {
+                allocated = -1;
+            } else {
+                allocated += allocatedBytes;
+            }
+            this.value = value;
+            isSorted = false;
+        }
+
+        synchronized void addError(Object failure) {
+            errors++;
+            this.value = failure;
+        }
+
+        public synchronized int runs() {
+            return n;
+        }
+
+        public synchronized int errors() {
+            return errors;
+        }
+
+        public synchronized Object value() {
+            return value;
+        }
+
+        /** Nearest-rank percentile of the successful runs; -1 if there were none. */
+        public synchronized long percentile(double p) {
+            if (n == 0) {
+                return -1;
+            }
+            if (!isSorted) {
+                Arrays.sort(samples, 0, n);
+                isSorted = true;
+            }
+            int rank = (int)Math.ceil(n * p / 100);
+            return samples[Math.max(rank, 1) - 1];
+        }
+
+        public synchronized long mean() {
+            if (n == 0) {
+                return -1;
+            }
+            long sum = 0;
+            for (int i = 0; i < n; i++) {
+                sum += samples[i];
+            }
+            return sum / n;
+        }
+
+        public long max() {
+            return percentile(100);
+        }
+
+        /** File size over p50 time, in MB (2^20 bytes) per second; NaN if not measurable. */
+        public double megabytesPerSecond() {
+            long p50 = percentile(50);
+            return (p50 <= 0) ? Double.NaN : size / (double)(1 << 20) / (p50 / 1e9);
+        }
+
+        /** Bytes allocated per value (on the computing thread); -1 if not supported. */
+        public synchronized long allocatedPerValue() {
+            return ((allocated < 0) || (n == 0)) ? -1 : allocated / n;
+        }
+    }
+
+
+    /* ----- TestRunner: non-static members -------------------------------- */
+
+
+    private final ContentPlugin plugin;
+    private int warmup = DEFAULT_WARMUP;
+    private int runs = DEFAULT_RUNS;
+    private int threads = 1;
+    private boolean isCached = false;
+    private String csv = null;
+    private String json = null;
+
+    public TestRunner(ContentPlugin plugin) {
+        this.plugin = plugin;
+    }
+
+    public TestRunner warmup(int n) {
+        if (n < 0) {
+            throw new IllegalArgumentException("warmup must be >= 0: " + n);
+        }
+        this.warmup = n;
+        return this;
+    }
+
+    public TestRunner runs(int n) {
+        if (n < 1) {
+            throw new IllegalArgumentException("runs must be >= 1: " + n);
+        }
+        this.runs = n;
+        return this;
+    }
+
+    /** 1 runs everything serially on the calling thread. */
+    public TestRunner threads(int n) {
+        if (n < 1) {
+            throw new IllegalArgumentException("threads must be >= 1: " + n);
+        }
+        this.threads = n;
+        return this;
+    }
+
+    /** Whether to measure with the plugin's own caches in use. */
+    public TestRunner cached(boolean isCached) {
+        this.isCached = isCached;
+        return this;
+    }
+
+    public TestRunner csv(String fileName) {
+        this.csv = fileName;
+        return this;
+    }
+
+    public TestRunner json(String fileName) {
+        this.json = fileName;
+        return this;
+    }
+
+    /** Applies the options (see class comment) among {@code args}, ignoring the file names. */
+    public TestRunner options(String... args) {
+        for (String arg: args) {
+            if (!arg.startsWith("--")) {
+                continue;
+            }
+            int i = arg.indexOf('=');
+            String name = (i < 0) ? arg.substring(2) : arg.substring(2, i);
+            String value = (i < 0) ? "" : arg.substring(i + 1);
+            switch (name) {
+                case "warmup":  warmup(Integer.parseInt(value)); break;
+                case "runs":    runs(Integer.parseInt(value)); break;
+                case "threads": threads(Integer.parseInt(value)); break;
+                case "cached":  cached(value.isEmpty() || Boolean.parseBoolean(value)); break;
+                case "csv":     csv(value); break;
+                case "json":    json(value); break;
+                default:
+                    throw new IllegalArgumentException("unknown option \"" + arg
+                        + "\"; known: --warmup=N, --runs=N, --threads=N, --cached, --csv=FILE, --json=FILE");
+            }
+        }
+        return this;
+    }
+
+    /** Measures all fields on all the files, prints a report to {@code out}
+      * and writes CSV and/or JSON if asked to.
+      */
+    public List<Result> run(PrintStream out, List<String> fileNames) throws IOException {
+        List<Result> results = new ArrayList<>();
+        for (String fileName: fileNames) {
+            long size = Files.size(Paths.get(fileName));
+            for (Field<?> f: plugin.fields()) {
+                results.add(new Result(fileName, size, f, runs));
+            }
+        }
+        boolean wasBypassed = plugin.isCacheBypassed();
+        plugin.setCacheBypassed(!isCached);
+        try {
+            execute(results, warmup, false);
+            execute(results, runs, true);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException(e.toString());
+        } finally {
+            plugin.setCacheBypassed(wasBypassed);
+        }
+        print(out, results);
+        if (csv != null) {
+            write(csv, out, results, false);
+        }
+        if (json != null) {
+            write(json, out, results, true);
+        }
+        return results;
+    }
+
+    private void execute(List<Result> results, int times, final boolean isMeasured) throws InterruptedException {
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int i = 0; i < times; i++) {
+            for (final Result r: results) {
+                tasks.add(new Callable<Void>() {
+                    public Void call() {
+                        measure(r, isMeasured);
+                        return null;
+                    }
+                });
+            }
+        }
+        if (threads == 1) {
+            for (Callable<Void> task: tasks) {
+                try {
+                    task.call();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            executor.invokeAll(tasks);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+    /* Bytes allocated by the current thread so far, or -1 if not supported. */
+    private static long allocatedBytes() {
+        if (threadBean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean b = (com.sun.management.ThreadMXBean)threadBean;
+            if (b.isThreadAllocatedMemorySupported() && b.isThreadAllocatedMemoryEnabled()) {
+                return b.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    private void measure(Result r, boolean isMeasured) {
+        long a = allocatedBytes();
+        long t = System.nanoTime();
+        try {
+            Object value = r.field.getValue(r.fileName);
+            t = System.nanoTime() - t;
+            a = (a < 0) ? -1 : allocatedBytes() - a;
+            if (isMeasured) {
+                r.add(t, a, value);
+            }
+        } catch (IOException | RuntimeException e) {
+            if (isMeasured) {
+                r.addError(e);
+            }
+        }
+    }
+
+    private void print(PrintStream out, List<Result> results) {
+        String pluginName = plugin.getClass().getName();
+        out.println(pluginName + ": " + warmup + " warmup, " + runs + " measured runs, "
+            + ((threads == 1) ? "serial" : threads + " threads")
+            + (isCached ? ", plugin caches in use" : ", plugin caches bypassed"));
+        String lastFile = null;
+        for (Result r: results) {
+            if (!r.fileName.equals(lastFile)) {
+                lastFile = r.fileName;
+                out.println("TEST \"" + r.fileName + "\" (" + r.size + " bytes, " + plugin.readStrategyFor(r.size) + ")");
+            }
+            Object value = r.value();
+            out.print("\t[" + pluginName + "." + r.field.name + "]"
+                + "\t(" + r.field.getJavaTypeName() + ")"
+                + String.format("\tp50 %9.3fms  p99 %9.3fms", r.percentile(50) / 1e6, r.percentile(99) / 1e6)
+                + String.format("\t%8.1f MB/sec", r.megabytesPerSecond())
+                + String.format("\t%8d B/value", r.allocatedPerValue())
+                + ((r.errors() > 0) ? "\t" + r.errors() + " errors" : "")
+                + "\t" + value
+            );
+            out.println((r.errors() == 0) ? "\t(" + r.field.transfer(value, new FieldValue()) + ")" : "");
+        }
+        out.println("READ depth=" + plugin.getReadAheadDepth() + ", bufferSize=" + plugin.getReadBufferSize() + ": " + plugin.getReadStats());
+        out.println("POOL " + plugin.getBufferPool());
+        if (plugin.getValueCache() != null) {
+            out.println("CACHE " + plugin.getValueCache());
+        }
+    }
+
+    private void write(String fileName, PrintStream stdout, List<Result> results, boolean isJson) throws IOException {
+        if ("-".equals(fileName)) {
+            PrintWriter w = new PrintWriter(new OutputStreamWriter(stdout, "UTF-8"));
+            write(w, results, isJson);
+            w.flush();
+            return;
+        }
+        try (PrintWriter w = new PrintWriter(Files.newBufferedWriter(Paths.get(fileName), java.nio.charset.StandardCharsets.UTF_8))) {
+            write(w, results, isJson);
+        }
+    }
+
+    private static final String[] COLUMNS = {
+        "plugin", "file", "size", "field", "type", "runs", "errors",
+        "p50_ns", "p99_ns", "mean_ns", "max_ns", "mb_per_s", "alloc_bytes_per_value", "value"
+    };
+
+    private void write(PrintWriter w, List<Result> results, boolean isJson) {
+        if (isJson) {
+            w.println("[");
+        } else {
+            w.println(join(",", Arrays.asList(COLUMNS)));
+        }
+        for (int i = 0; i < results.size(); i++) {
+            Result r = results.get(i);
+            double mbs = r.megabytesPerSecond();
+            Object[] row = {
+                plugin.getClass().getName(), r.fileName, r.size, r.field.name, r.field.getJavaTypeName(), r.runs(), r.errors(),
+                r.percentile(50), r.percentile(99), r.mean(), r.max(),
+                Double.isNaN(mbs) ? null : mbs,
+                r.allocatedPerValue(), (r.value() == null) ? null : r.value().toString()
+            };
+            List<String> cells = new ArrayList<>();
+            for (int c = 0; c < row.length; c++) {
+                Object cell = row[c];
+                boolean isText = cell instanceof String;
+                if (isJson) {
+                    cells.add("\"" + COLUMNS[c] + "\": " + ((cell == null) ? "null" : isText ? jsonString((String)cell) : cell));
+                } else {
+                    cells.add((cell == null) ? "" : isText ? csvString((String)cell) : cell.toString());
+                }
+            }
+            if (isJson) {
+                w.println("  {" + join(", ", cells) + "}" + ((i < results.size() - 1) ? "," : ""));
+            } else {
+                w.println(join(",", cells));
+            }
+        }
+        if (isJson) {
+            w.println("]");
+        }
+    }
+
+    private static String join(String separator, List<String> parts) {
+        StringBuilder result = new StringBuilder();
+        for (String s: parts) {
+            if (result.length() > 0) {
+                result.append(separator);
+            }
+            result.append(s);
+        }
+        return result.toString();
+    }
+
+    private static String csvString(String s) {
+        if ((s.indexOf(',') < 0) && (s.indexOf('"') < 0) && (s.indexOf('\n') < 0) && (s.indexOf('\r') < 0)) {
+            return s;
+        }
+        return "\"" + s.replace("\"", "\"\"") + "\"";
+    }
+
+    private static String jsonString(String s) {
+        StringBuilder result = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':  result.append("\\\""); break;
+                case '\\': result.append("\\\\"); break;
+                case '\n': result.append("\\n"); break;
+                case '\r': result.append("\\r"); break;
+                case '\t': result.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        result.append(String.format("\\u%04x", (int)c));
+                    } else {
+                        result.append(c);
+                    }
+            }
+        }
+        return result.append('"').toString();
+    }
+
+}
@@ -0,0 +1,187 @@
+package plugins.wdx;
+
+import java.io.*;
+
+import java.util.*;
+
+
+/** Remembers field values per (field, path, size, last-modified),
+  * evicting the least recently used ones beyond a maximum number of entries
+  * or (estimated) bytes; see {@link ContentPlugin#enableValueCache}.
+  * <p>
+  * A changed file gets a new key, so its stale entries are never hit again
+  * and just age out.
+  * <p>
+  * The path is the file name as passed in by TC, not canonicalized: that would
+  * cost a file system round trip on every request, hit or not.
+  *
+  * @author Matthias Kling (meisl)
+  */
+public class ValueCache {
+
+    /** Returned by {@link #get} if there's no entry for the key. */
+    public static final Object MISS = new Object();
+
+    /**
+      * @author Matthias Kling (meisl)
+      */
+    public static final class Key {
+
+        final Field<?> field;
+        final String path;
+        final long size;
+        final long lastModified;
+        private final int hash;
+
+        Key(Field<?> field, String path, long size, long lastModified) {
+            this.field = field;
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = ((field.hashCode() * 31 + path.hashCode()) * 31 + Long.hashCode(size)) * 31 + Long.hashCode(lastModified);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key)o;
+            return (field == k.field) && (size == k.size) && (lastModified == k.lastModified) && path.equals(k.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        public String toString() {
+            return field.name + "(\"" + path + "\", " + size + ", " + lastModified + ")";
+        }
+    }
+
+    private static final class Entry {
+        final Object value;
+        final long bytes;
+
+        Entry(Object value, long bytes) {
+            this.value = value;
+            this.bytes = bytes;
+        }
+    }
+
+
+    /* ----- ValueCache: non-static members -------------------------------- */
+
+
+    private final int maxEntries;
+    private final long maxBytes;
+
+    // access-ordered, ie eldest == least recently used:
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);  // guarded by this
+    private long bytes = 0;         // guarded by this
+
+    private long hits = 0;          // guarded by this
+    private long misses = 0;        // guarded by this
+    private long evictions = 0;     // guarded by this
+
+    public ValueCache(int maxEntries, long maxBytes) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be >= 1: " + maxEntries);
+        }
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException("maxBytes must be >= 1: " + maxBytes);
+        }
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    /** Makes the key for {@code field}'s value on the specified file as it is now. */
+    public Key key(Field<?> field, String fileName) throws IOException {
+        File file = new File(fileName);
+        return new Key(field, fileName, file.length(), file.lastModified());
+    }
+
+    /** Returns the value cached for {@code key} (which may be null), or {@link #MISS}. */
+    public synchronized Object get(Key key) {
+        Entry e = entries.get(key);
+        if (e == null) {
+            misses++;
+            return MISS;
+        }
+        hits++;
+        return e.value;
+    }
+
+    public synchronized void put(Key key, Object value) {
+        long n = sizeOf(key, value);
+        Entry old = entries.put(key, new Entry(value, n));
+        if (old != null) {
+            bytes -= old.bytes;
+        }
+        bytes += n;
+        Iterator<Entry> it = entries.values().iterator();
+        while ((entries.size() > maxEntries) || ((bytes > maxBytes) && (entries.size() > 1))) {
+            Entry eldest = it.next();
+            it.remove();
+            bytes -= eldest.bytes;
+            evictions++;
+        }
+    }
+
+    /** Forgets all values for the specified file, eg after it has been modified
+      * in a way that may not show in its size or last-modified time.
+      */
+    public synchronized void invalidate(String fileName) throws IOException {
+        Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, Entry> e = it.next();
+            if (e.getKey().path.equals(fileName)) {
+                it.remove();
+                bytes -= e.getValue().bytes;
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    /** Estimates the heap taken by an entry; roughly, no need to be exact. */
+    protected long sizeOf(Key key, Object value) {
+        long n = 96 + 2L * key.path.length();   // Key, Entry, map node, path chars
+        if (value instanceof CharSequence) {
+            n += 48 + 2L * ((CharSequence)value).length();
+        } else if (value != null) {
+            n += 24;
+        }
+        return n;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    public synchronized long evictions() {
+        return evictions;
+    }
+
+    public synchronized String toString() {
+        return entries.size() + "/" + maxEntries + " entries, " + bytes + "/" + maxBytes + " bytes"
+            + ", " + hits + " hits, " + misses + " misses, " + evictions + " evictions";
+    }
+
+}
@@ -2,6 +2,8 @@ package plugins.wdx;
 
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 import static plugins.wdx.ContentPlugin.*;
 
@@ -11,7 +13,12 @@ import static plugins.wdx.ContentPlugin.*;
   */
 public class WorkItem {
 
-    /**
+    /** The WorkItems being worked on, per file name.
+      * <p>
+      * Items for different files never contend: the file names map to their
+      * items in a {@link ConcurrentHashMap}, and each file's items are guarded
+      * by a lock of their own, held only for adding, removing or copying them.
+      *
       * @author Matthias Kling (meisl)
       */
     public static class Store {
@@ -30,17 +37,14 @@ public class WorkItem {
                 throw new UnsupportedOperationException("WorkItem.Store.NULL cannot create WorkItems");
             }
 
-            private final synchronized void add(WorkItem it) {
-                // do nothing;
-            }
-
-            private synchronized Set<WorkItem> getItems(String fileName) {
-                return Collections.<WorkItem>emptySet();
+            @Override
+            Iterable<String> fileNames() {
+                return Collections.<String>emptyList();
             }
 
             @Override
-            public Iterable<String> fileNames() {
-                return Collections.<String>emptyList();
+            Collection<WorkItem> items(String fileName) {
+                return Collections.<WorkItem>emptySet();
             }
 
         }
@@ -49,18 +53,30 @@ public class WorkItem {
          */
         public static final NullStore NULL = new NullStore();
 
+        /* The items for one file name. Once emptied, it's dead and removed
+         * from the map; adders finding a dead one start over with a new one.
+         */
+        private static final class Items {
+            final Set<WorkItem> set = new HashSet<>(2);    // guarded by this
+            boolean isDead = false;                         // guarded by this
+        }
+
 
         /* ----- WorkItem.Store: non-static members ---------------------------- */
 
 
-        protected Map<String, Set<WorkItem>> fileNames2items;
+        protected ConcurrentMap<String, Items> fileNames2items;
+
+        private final AtomicLong stopsServed = new AtomicLong();
+        private final AtomicLong stopLatencyNanos = new AtomicLong();
+        private final AtomicLong maxStopLatencyNanos = new AtomicLong();
 
         public Store() {
             init();
         }
 
         protected void init() {
-            this.fileNames2items = new HashMap<>();
+            this.fileNames2items = new ConcurrentHashMap<>();
         }
 
         /* Creates a new WorkItem in this store and returns it.
@@ -74,78 +90,101 @@ public class WorkItem {
         /* Adds the specified WorkItem to this store.
          * @throws IllegalArgumentException if the item already is in this store.
          */
-        private synchronized void add(WorkItem it) {
+        private void add(WorkItem it) {
             if (it.store == this) {
                 throw new IllegalArgumentException("cannot add WorkItem again: " + it);
             }
-            Set<WorkItem> items = this.getItems(it.fileName);
-            if (items.isEmpty()) {
-                items = new HashSet<>();
-                fileNames2items.put(it.fileName, items);
-            }
-            items.add(it);
             it.setStore(this);
+            while (true) {
+                Items items = fileNames2items.get(it.fileName);
+                if (items == null) {
+                    items = new Items();
+                    Items old = fileNames2items.putIfAbsent(it.fileName, items);
+                    if (old != null) {
+                        items = old;
+                    }
+                }
+                synchronized (items) {
+                    if (!items.isDead) {
+                        items.set.add(it);
+                        return;
+                    }
+                }
+            }
         }
 
         /* Removes the specified WorkItem from this store.
          * @throws IllegalArgumentException if the item was not in this store.
          */
-        private synchronized void remove(WorkItem it) {
+        private void remove(WorkItem it) {
             if (it.store != this) {
                 throw new IllegalArgumentException("cannot remove - no such WorkItem: " + it);
             }
-            Set<WorkItem> items = this.getItems(it.fileName);
-            items.remove(it);
-            if (items.isEmpty()) {
-                fileNames2items.remove(it.fileName);
+            Items items = fileNames2items.get(it.fileName);
+            if (items != null) {
+                synchronized (items) {
+                    items.set.remove(it);
+                    if (items.set.isEmpty()) {
+                        items.isDead = true;
+                        fileNames2items.remove(it.fileName, items);
+                    }
+                }
             }
             it.setStore(null);
         }
-/*
-    WorkItem addWorkItem(String fileName, Field<?> field, int unitIndex) {
-        synchronized (fileNames2workItems) {
-            WorkItem result = new WorkItem(fileName, field, unitIndex);
-            HashSet<WorkItem> workItems = fileNames2workItems.get(fileName);
-            if (workItems == null) {
-                workItems = new HashSet<>();
-                fileNames2workItems.put(fileName, workItems);
-            }
-            workItems.add(result);
-            return result;
+
+        Iterable<String> fileNames() {
+            return fileNames2items.keySet();
         }
-    }
-    
-    void removeWorkItem(WorkItem workItem) {
-        synchronized (fileNames2workItems) {
-            Set<WorkItem> workItems = fileNames2workItems.get(workItem.fileName);
-            workItems.remove(workItem);
-            if (workItems.isEmpty()) {
-                fileNames2workItems.remove(workItem.fileName);
+
+        /* A snapshot of the items for the specified file name. */
+        Collection<WorkItem> items(String fileName) {
+            Items items = fileNames2items.get(fileName);
+            if (items == null) {
+                return Collections.<WorkItem>emptySet();
+            }
+            synchronized (items) {
+                return new ArrayList<>(items.set);
             }
         }
-    }
-*/
-        private synchronized Set<WorkItem> getItems(String fileName) {
-            Set<WorkItem> workItems = fileNames2items.get(fileName);
-            return (workItems == null) ? Collections.<WorkItem>emptySet() : workItems;
+
+        public int itemCount(String fileName) {
+            return this.items(fileName).size();
         }
 
-        Iterable<String> fileNames() {
-            return fileNames2items.keySet();
+        private void stopServed(long latencyNanos) {
+            stopsServed.incrementAndGet();
+            stopLatencyNanos.addAndGet(latencyNanos);
+            long max;
+            do {
+                max = maxStopLatencyNanos.get();
+            } while ((latencyNanos > max) && !maxStopLatencyNanos.compareAndSet(max, latencyNanos));
+        }
+
+        /** Number of WorkItems that were cleaned up after {@link WorkItem#requestStop}. */
+        public long stopsServed() {
+            return stopsServed.get();
+        }
+
+        /** Total time from {@link WorkItem#requestStop} to cleanup, over all {@link #stopsServed}. */
+        public long stopLatencyNanos() {
+            return stopLatencyNanos.get();
         }
 
-        Iterable<WorkItem> items(String fileName) {
-            return this.getItems(fileName);
+        public long maxStopLatencyNanos() {
+            return maxStopLatencyNanos.get();
         }
 
-        public synchronized int itemCount(String fileName) {
-            return this.getItems(fileName).size();
+        public String stopLatencies() {
+            long n = stopsServed();
+            return String.format("%d stops, avg %.2f ms, max %.2f ms",
+                n, (n == 0) ? 0.0 : stopLatencyNanos() / 1e6 / n, maxStopLatencyNanos() / 1e6);
         }
 
-        public synchronized String toString() {
+        public String toString() {
             StringBuilder result = new StringBuilder();
             for (String fileName: this.fileNames()) {
-                Set<WorkItem> workItems = this.getItems(fileName);
+                Collection<WorkItem> workItems = this.items(fileName);
                 result.append("\n")
                     .append(workItems.size())
                     .append(": ")
@@ -169,6 +208,14 @@ public class WorkItem {
     }
 
 
+    private static final ThreadLocal<WorkItem> current = new ThreadLocal<>();
+
+    /** The WorkItem the current thread is working on, if any (null otherwise). */
+    public static WorkItem current() {
+        return current.get();
+    }
+
+
     /* ----- WorkItem: non-static members -------------------------------------- */
 
 
@@ -179,6 +226,12 @@ public class WorkItem {
     private long time;
     private Store store;
 
+    private final List<Contents> contents = new ArrayList<>(2);  // guarded by this; to be stopped
+    private final List<Contents> attached = new ArrayList<>(2);  // guarded by this; all ever attached
+    private final List<WorkItem> included = new ArrayList<>(1);  // guarded by this; counted in getBytesRead
+    private long stopRequestedAt = 0;                           // guarded by this; System.nanoTime()
+    private long stopLatency = -1;
+
     WorkItem(String fileName, Field<?> field, int unitIndex) {
         this.store = store;
         this.workingThread = Thread.currentThread();
@@ -187,26 +240,111 @@ public class WorkItem {
         this.unitIndex = unitIndex;
         //myLog.warn("start slow " + field.name + ": \"" + fileName + "\"");    // TODO: logging
         this.time = -System.currentTimeMillis();
+        current.set(this);
     }
 
     private void setStore(Store store) {
         this.store = store;
     }
 
+    /** Registers {@code c} to be {@link Contents#stop stop}ped along with this
+      * WorkItem; stops it right away if a stop has been requested already.
+      */
+    public void attach(Contents c) {
+        synchronized (this) {
+            attached.add(c);
+            if (stopRequestedAt == 0) {
+                contents.add(c);
+                return;
+            }
+        }
+        c.stop();
+    }
+
+    /** Counts the bytes read by {@code other} - work done for this item on another
+      * thread, and possibly for other items as well - toward {@link #getBytesRead}.
+      * Stopping this item doesn't stop {@code other}.
+      */
+    public void include(WorkItem other) {
+        synchronized (this) {
+            included.add(other);
+        }
+    }
+
+    /** Stops all {@link #attach attach}ed Contents - which cancels their reads
+      * and unblocks the working thread - and interrupts the working thread.
+      */
     public void requestStop() {
+        Contents[] toStop;
+        synchronized (this) {
+            if (stopRequestedAt == 0) {
+                stopRequestedAt = System.nanoTime();
+            }
+            toStop = contents.toArray(new Contents[contents.size()]);
+            contents.clear();
+        }
+        for (Contents c: toStop) {
+            c.stop();
+        }
         this.workingThread.interrupt();
     }
 
+    public synchronized boolean isStopRequested() {
+        return stopRequestedAt != 0;
+    }
+
+    /** Time from {@link #requestStop} to {@link #cleanup}, in nanoseconds;
+      * -1 if no stop was requested (or not cleaned up yet).
+      */
+    public long getStopLatency() {
+        return stopLatency;
+    }
+
+    /** The number of bytes read so far by all {@link #attach attach}ed Contents,
+      * and by all {@link #include include}d WorkItems.
+      */
+    public long getBytesRead() {
+        long n = 0;
+        WorkItem[] others;
+        synchronized (this) {
+            for (Contents c: attached) {
+                n += c.stats().bytes();
+            }
+            others = included.toArray(new WorkItem[included.size()]);
+        }
+        for (WorkItem it: others) {
+            n += it.getBytesRead();
+        }
+        return n;
+    }
+
     public long getTime() {
         return this.time >= 0 ? this.time : this.time + System.currentTimeMillis();
     }
 
+    public String toString() {
+        return "\"" + fileName + "\" " + field.name + "." + unitIndex + " " + getTime() + " ms"
+            + (isStopRequested() ? " (stop requested)" : "");
+    }
+
     public void cleanup() {
         this.time = getTime();
         if (this.workingThread != Thread.currentThread()) { // TODO: assert it
             throw new IllegalStateException(this.workingThread + " != " + Thread.currentThread());
         }
         Thread.interrupted(); // clear interrupted status
+        if (current.get() == this) {
+            current.remove();
+        }
+        long stopRequestedAt;
+        synchronized (this) {
+            contents.clear();
+            stopRequestedAt = this.stopRequestedAt;
+        }
+        if (stopRequestedAt != 0) {
+            stopLatency = System.nanoTime() - stopRequestedAt;
+            this.store.stopServed(stopLatency);
+        }
         this.store.remove(this);
     }
 